@@ -0,0 +1,225 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes the builds of a {@link DiscardPlan}, optionally using several threads.
+ *
+ * <p>A failure to delete one build does not stop the others from being deleted. Whatever the number of
+ * threads, builds are logged in the order of the plan. Deletions are throttled by the
+ * {@link DeletionRateLimiter}; once they were throttled for longer than allowed, the remaining builds are left
+ * for the next discard, which selects them again. Builds moved to the {@link BuildTrash} are not throttled, the
+ * purge of the trash is. Builds planned to be stripped or to have their log compacted are kept. A deleter is used
+ * for a single plan.
+ */
+final class BuildDeleter {
+
+    /**
+     * Maximum number of builds deleted at the same time.
+     */
+    private final int threads;
+
+    private final DeletionRateLimiter limiter;
+    /**
+     * Trash to move builds to, or {@code null}.
+     */
+    private final BuildTrash trash;
+    /**
+     * Compacts the logs of the builds planned for it, or {@code null}.
+     */
+    private final LogCompactor compactor;
+
+    private final AtomicLong throttled = new AtomicLong();
+    private volatile boolean leaving;
+
+    BuildDeleter(int threads) {
+        this(threads, DeletionRateLimiter.UNLIMITED);
+    }
+
+    BuildDeleter(int threads, DeletionRateLimiter limiter) {
+        this(threads, limiter, null, null);
+    }
+
+    BuildDeleter(int threads, DeletionRateLimiter limiter, BuildTrash trash, LogCompactor compactor) {
+        this.threads = threads;
+        this.limiter = limiter;
+        this.trash = trash;
+        this.compactor = compactor;
+    }
+
+    void delete(DiscardPlan plan, TaskListener listener) {
+        long start = System.nanoTime();
+        int left = 0;
+        try {
+            left = deleteAll(plan, listener);
+        } catch (InterruptedException e) {
+            listener.getLogger().println("Interrupted, remaining builds are kept."); // $NON-NLS-1$
+            Thread.currentThread().interrupt();
+        } finally {
+            RetentionStats stats = plan.getStats();
+            stats.deletion(System.nanoTime() - start);
+            stats.throttled(throttled.get(), left);
+        }
+        if (throttled.get() > 0) {
+            listener.getLogger()
+                    .printf(
+                            "Deletion was throttled for %d ms%n", // $NON-NLS-1$
+                            TimeUnit.NANOSECONDS.toMillis(throttled.get()));
+        }
+        if (left > 0) {
+            listener.getLogger().printf("%d builds are left for the next run%n", left); // $NON-NLS-1$
+        }
+    }
+
+    /**
+     * @return number of builds left for the next run
+     */
+    private int deleteAll(DiscardPlan plan, TaskListener listener) throws InterruptedException {
+        RetentionStats stats = plan.getStats();
+        if (threads <= 1 || plan.size() <= 1) {
+            int deleted = 0;
+            for (DiscardPlan.Entry entry : plan) {
+                long size = admit(entry);
+                if (size == -1) break;
+                deleted++;
+                log(entry, listener);
+                try {
+                    remove(entry, size, stats);
+                } catch (IOException e) {
+                    e.printStackTrace(listener.error("")); // $NON-NLS-1$
+                }
+            }
+            return plan.size() - deleted;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(threads, plan.size()),
+                new NamingThreadFactory(new DaemonThreadFactory(), "DiscardOldBuild.BuildDeleter"));
+        try {
+            List<Future<Boolean>> deletions = new ArrayList<Future<Boolean>>(plan.size());
+            for (DiscardPlan.Entry entry : plan) {
+                deletions.add(pool.submit(() -> {
+                    long size = admit(entry);
+                    if (size == -1) return false;
+                    remove(entry, size, stats);
+                    return true;
+                }));
+            }
+            int left = 0;
+            for (int i = 0; i < deletions.size(); i++) {
+                DiscardPlan.Entry entry = plan.getEntries().get(i);
+                try {
+                    if (deletions.get(i).get()) {
+                        log(entry, listener);
+                    } else {
+                        left++;
+                    }
+                } catch (ExecutionException e) {
+                    log(entry, listener);
+                    e.getCause().printStackTrace(listener.error("")); // $NON-NLS-1$
+                }
+            }
+            return left;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for the {@link DeletionRateLimiter} to let the build be deleted. The build directory is only measured
+     * if the trash or the limiter need its size.
+     *
+     * @return bytes the deletion will reclaim, 0 if they are not known, or -1 if the build is left for the next
+     *     run
+     */
+    private long admit(DiscardPlan.Entry entry) throws InterruptedException {
+        if (leaving) return -1;
+        BuildRecord record = entry.getRecord();
+        long size = trash != null || limiter.limitsBytes()
+                ? record.getDiskUsage()
+                : Math.max(0, record.getRecordedDiskUsage());
+        if (trash != null && trash.hasRoom(size)) return size;
+        long maxThrottle = limiter.getMaxThrottle();
+        long maxWait = maxThrottle == -1 ? -1 : Math.max(0, maxThrottle - throttled.get());
+        long waited = limiter.acquire(size, maxWait);
+        if (waited == -1) {
+            leaving = true;
+            return -1;
+        }
+        throttled.addAndGet(waited);
+        return size;
+    }
+
+    private void remove(DiscardPlan.Entry entry, long size, RetentionStats stats) throws IOException {
+        Run<?, ?> r = entry.getRun();
+        if (r == null) return; // already deleted
+        if (entry.getMode() == DiscardPlan.Mode.STRIP) {
+            stats.stripped(entry.getRule(), strip(r, entry.getRule()));
+            return;
+        }
+        if (entry.getMode() == DiscardPlan.Mode.COMPACT_LOG) {
+            if (compactor == null) return;
+            stats.compacted(entry.getRule(), compactor.compact(r.getLogFile()));
+            // records the new size of the log
+            BuildIndex.put(r);
+            return;
+        }
+        if (trash == null || !trash.delete(r, size)) r.delete();
+        stats.deleted(entry.getRule(), size);
+    }
+
+    /**
+     * Deletes the log and artifacts of a build, keeping the build and recording what was deleted in a
+     * {@link StrippedBuildAction}. The log is replaced by a line telling why.
+     *
+     * @return bytes reclaimed
+     */
+    private static long strip(Run<?, ?> r, String rule) throws IOException {
+        if (r.getAction(StrippedBuildAction.class) != null) return 0;
+        List<String> parts = new ArrayList<String>();
+        long reclaimed = 0;
+        File log = r.getLogFile();
+        if (log.isFile()) {
+            reclaimed += log.length();
+            Files.delete(log.toPath());
+            Files.write(
+                    new File(r.getRootDir(), "log").toPath(),
+                    ("Log discarded by " + rule + "\n").getBytes(StandardCharsets.UTF_8)); // $NON-NLS-1$
+            parts.add("log");
+        }
+        File artifacts = r.getArtifactsDir();
+        if (artifacts != null && artifacts.exists()) {
+            reclaimed += BuildRecord.diskUsage(artifacts);
+            parts.add("artifacts");
+        }
+        // also deletes artifacts kept elsewhere by an artifact manager
+        r.deleteArtifacts();
+        r.addAction(new StrippedBuildAction(rule, parts, reclaimed));
+        r.save();
+        return reclaimed;
+    }
+
+    private static void log(DiscardPlan.Entry entry, TaskListener listener) {
+        String format = entry.getMode() == DiscardPlan.Mode.STRIP
+                ? "#%d is stripped because %s%n" // $NON-NLS-1$
+                : entry.getMode() == DiscardPlan.Mode.COMPACT_LOG
+                        ? "The log of #%d is compacted because %s%n" // $NON-NLS-1$
+                        : "#%d is removed because %s%n"; // $NON-NLS-1$
+        listener.getLogger().printf(format, entry.getNumber(), entry.getReason());
+    }
+}
@@ -0,0 +1,368 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.listeners.RunListener;
+import hudson.model.listeners.SaveableListener;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compact per-job index of the {@link BuildRecord}s of completed builds, kept in {@value #FILE_NAME} in the
+ * job directory, so that retention rules can be evaluated without unmarshalling every {@code build.xml}.
+ *
+ * <p>The index is created from the build history the first time a job is evaluated, and from then on records
+ * are appended as builds complete, change or are deleted. Each evaluation compares it with the build
+ * directories on disk and only loads the builds missing from it, which normally are the running ones.
+ *
+ * <p>The file starts with {@link #MAGIC}, followed by entries of a type byte and a build number; {@link #PUT}
+ * entries are followed by the timestamp, result, flags, log size, disk usage and log charset of the build, and
+ * {@link #SIZE} entries by the disk usage alone. The disk usage is computed when a build completes for the jobs
+ * limiting their disk usage, and otherwise recorded with a {@link #SIZE} entry once it is first computed. A
+ * {@link #PUT} entry without it keeps the disk usage recorded before, unless the log or the stripped flag of the
+ * build changed.
+ */
+public final class BuildIndex {
+    private static final Logger LOGGER = Logger.getLogger(BuildIndex.class.getName());
+
+    static final String FILE_NAME = "discard-old-build.index";
+
+    private static final int MAGIC = 0x444f4234; // DOB4
+    private static final byte PUT = 'P';
+    private static final byte REMOVE = 'D';
+    private static final byte SIZE = 'S';
+    private static final byte BUILDING = 1;
+    private static final byte KEEP_LOG = 2;
+    private static final byte STRIPPED = 4;
+    private static final Result[] RESULTS = {
+        Result.SUCCESS, Result.UNSTABLE, Result.FAILURE, Result.NOT_BUILT, Result.ABORTED
+    };
+    /**
+     * Number of obsolete entries tolerated before the index is rewritten.
+     */
+    private static final int COMPACT_THRESHOLD = 1000;
+
+    private BuildIndex() {}
+
+    /**
+     * Lists the builds of a job. The first call for a job loads its whole history to create the index. Dry runs
+     * create and update the index too, since it only records what the builds are.
+     *
+     * @param job job whose builds are listed
+     * @return records of all builds of the job, newest first
+     */
+    static List<BuildRecord> records(Job<?, ?> job) {
+        File file = getFile(job);
+        Map<Integer, BuildRecord> records = new TreeMap<Integer, BuildRecord>(Collections.reverseOrder());
+        if (file.exists()) {
+            try {
+                int entries = read(job, file, records);
+                reconcile(job, file, records);
+                if (entries > 2 * records.size() + COMPACT_THRESHOLD) write(file, records.values());
+                return new ArrayList<BuildRecord>(records.values());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Recreating unreadable " + file, e);
+                records.clear();
+            }
+        }
+
+        // the history is loaded one build at a time, and only the running builds are kept referenced, so that
+        // the builds already seen can be unloaded again however long the history is
+        for (Run<?, ?> r : job.getBuilds()) {
+            BuildRecord record = BuildRecord.of(r);
+            records.put(r.getNumber(), record.isBuilding() ? record : record.detach());
+        }
+        try {
+            write(job, records.values());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write " + file, e);
+        }
+        return new ArrayList<BuildRecord>(records.values());
+    }
+
+    /**
+     * Adds the build directories which are missing from the index, and drops builds whose directory is gone.
+     *
+     * @param file index to append the changes to
+     */
+    private static void reconcile(Job<?, ?> job, File file, Map<Integer, BuildRecord> records) throws IOException {
+        File buildDir = job.getBuildDir();
+        String[] names = buildDir == null ? null : buildDir.list();
+        if (names == null) return;
+
+        int[] onDisk = new int[names.length];
+        int count = 0;
+        for (String name : names) {
+            int number = parseBuildNumber(name);
+            if (number > 0) onDisk[count++] = number;
+        }
+        onDisk = Arrays.copyOf(onDisk, count);
+        Arrays.sort(onDisk);
+
+        for (Iterator<Integer> it = records.keySet().iterator(); it.hasNext(); ) {
+            int number = it.next();
+            if (Arrays.binarySearch(onDisk, number) < 0) {
+                it.remove();
+                append(file, REMOVE, number, null);
+            }
+        }
+        for (int number : onDisk) {
+            if (records.containsKey(number)) continue;
+            Run<?, ?> r = job.getBuildByNumber(number);
+            if (r == null) continue;
+            BuildRecord record = BuildRecord.of(r);
+            records.put(number, record.isBuilding() ? record : record.detach());
+            if (!record.isBuilding()) append(file, PUT, number, record);
+        }
+    }
+
+    private static int parseBuildNumber(String name) {
+        if (name.isEmpty() || name.length() > 9) return -1;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) < '0' || name.charAt(i) > '9') return -1;
+        }
+        return Integer.parseInt(name);
+    }
+
+    /**
+     * Records a completed build, if its job is indexed. The size of the build directory is left to be computed
+     * on first use.
+     */
+    static void put(Run<?, ?> r) {
+        put(r, false);
+    }
+
+    /**
+     * Records a completed build, if its job is indexed.
+     *
+     * @param diskUsage whether to compute the size of the build directory now
+     */
+    private static void put(Run<?, ?> r, boolean diskUsage) {
+        if (r.isBuilding()) return;
+        File file = getFile(r.getParent());
+        if (!file.exists()) return;
+        try {
+            append(file, PUT, r.getNumber(), BuildRecord.of(r, diskUsage));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to record " + r + " in " + file, e);
+        }
+    }
+
+    /**
+     * Records the size of the directory of a completed build, if its job is indexed.
+     */
+    static void putDiskUsage(Job<?, ?> job, int number, long diskUsage) {
+        File file = getFile(job);
+        if (!file.exists()) return;
+        try {
+            append(file, SIZE, number, diskUsage);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to record the size of #" + number + " in " + file, e);
+        }
+    }
+
+    /**
+     * Removes a deleted build, if its job is indexed.
+     */
+    static void remove(Run<?, ?> r) {
+        File file = getFile(r.getParent());
+        if (!file.exists()) return;
+        try {
+            append(file, REMOVE, r.getNumber(), null);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to remove " + r + " from " + file, e);
+        }
+    }
+
+    private static boolean limitsDiskUsage(Job<?, ?> job) {
+        if (!(job instanceof AbstractProject)) return false;
+        DiscardBuildPublisher publisher =
+                ((AbstractProject<?, ?>) job).getPublishersList().get(DiscardBuildPublisher.class);
+        return publisher != null && publisher.maxDiskUsage() != -1;
+    }
+
+    private static File getFile(Job<?, ?> job) {
+        return new File(job.getRootDir(), FILE_NAME);
+    }
+
+    /**
+     * Replaces the index of a job.
+     *
+     * @param job     indexed job
+     * @param records records of the builds of the job; those of running builds are left out
+     */
+    static void write(Job<?, ?> job, Collection<BuildRecord> records) throws IOException {
+        write(getFile(job), records);
+    }
+
+    /**
+     * @return number of entries in the file
+     */
+    private static int read(Job<?, ?> job, File file, Map<Integer, BuildRecord> records) throws IOException {
+        synchronized (BuildIndex.class) {
+            try (DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+                // also rejects indexes written by older versions, which are then recreated
+                if (in.readInt() != MAGIC) throw new IOException("Not a build index");
+                int entries = 0;
+                while (true) {
+                    int type = in.read();
+                    if (type == -1) return entries;
+                    try {
+                        int number = in.readInt();
+                        if (type == REMOVE) {
+                            records.remove(number);
+                        } else if (type == SIZE) {
+                            long diskUsage = in.readLong();
+                            BuildRecord record = records.get(number);
+                            if (record != null) record.setDiskUsage(diskUsage);
+                        } else if (type == PUT) {
+                            long timeInMillis = in.readLong();
+                            byte result = in.readByte();
+                            byte flags = in.readByte();
+                            long logSize = in.readLong();
+                            long diskUsage = in.readLong();
+                            String charset = in.readUTF();
+                            BuildRecord previous = records.get(number);
+                            if (diskUsage == -1
+                                    && previous != null
+                                    && previous.getLogSize() == logSize
+                                    && previous.isStripped() == ((flags & STRIPPED) != 0)) {
+                                diskUsage = previous.getRecordedDiskUsage();
+                            }
+                            records.put(
+                                    number,
+                                    new BuildRecord(
+                                            job,
+                                            number,
+                                            timeInMillis,
+                                            result < 0 || result >= RESULTS.length ? null : RESULTS[result],
+                                            (flags & BUILDING) != 0,
+                                            (flags & KEEP_LOG) != 0,
+                                            logSize,
+                                            diskUsage,
+                                            (flags & STRIPPED) != 0,
+                                            charset.isEmpty() ? null : charset));
+                        } else {
+                            throw new IOException("Unknown entry type " + type);
+                        }
+                        entries++;
+                    } catch (EOFException e) {
+                        // entry cut short by a crash while appending it
+                        return entries;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void write(File file, Collection<BuildRecord> records) throws IOException {
+        synchronized (BuildIndex.class) {
+            File tmp = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+                out.writeInt(MAGIC);
+                for (BuildRecord record : records) {
+                    if (!record.isBuilding()) write(out, PUT, record.getNumber(), record);
+                }
+            }
+            Files.move(
+                    tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static void append(File file, byte type, int number, BuildRecord record) throws IOException {
+        synchronized (BuildIndex.class) {
+            try (OutputStream os = Files.newOutputStream(file.toPath(), StandardOpenOption.APPEND);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os))) {
+                write(out, type, number, record);
+            }
+        }
+    }
+
+    private static void append(File file, byte type, int number, long value) throws IOException {
+        synchronized (BuildIndex.class) {
+            try (OutputStream os = Files.newOutputStream(file.toPath(), StandardOpenOption.APPEND);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os))) {
+                out.writeByte(type);
+                out.writeInt(number);
+                out.writeLong(value);
+            }
+        }
+    }
+
+    private static void write(DataOutputStream out, byte type, int number, BuildRecord record) throws IOException {
+        out.writeByte(type);
+        out.writeInt(number);
+        if (type == PUT) {
+            out.writeLong(record.getTimeInMillis());
+            out.writeByte(resultIndex(record.getResult()));
+            out.writeByte((record.isBuilding() ? BUILDING : 0)
+                    | (record.isKeepLog() ? KEEP_LOG : 0)
+                    | (record.isStripped() ? STRIPPED : 0));
+            out.writeLong(record.getLogSize());
+            out.writeLong(record.getRecordedDiskUsage());
+            out.writeUTF(record.getCharsetName() == null ? "" : record.getCharsetName());
+        }
+    }
+
+    private static int resultIndex(Result result) {
+        for (int i = 0; i < RESULTS.length; i++) {
+            if (RESULTS[i] == result) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Keeps indexes up to date as builds complete or are deleted.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onFinalized(Run<?, ?> r) {
+            // computed once, rather than by each evaluation, for the jobs which limit their disk usage
+            put(r, limitsDiskUsage(r.getParent()));
+        }
+
+        @Override
+        public void onDeleted(Run<?, ?> r) {
+            remove(r);
+        }
+    }
+
+    /**
+     * Keeps indexes up to date as completed builds change, for instance when they are marked to be kept forever.
+     * The disk usage recorded before is kept.
+     */
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Run) put((Run<?, ?>) o);
+        }
+    }
+}
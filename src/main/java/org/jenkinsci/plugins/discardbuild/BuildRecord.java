@@ -0,0 +1,315 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+/**
+ * The few properties of a build the retention rules look at, so that rules can be evaluated without loading
+ * the build itself. Records are kept in the {@link BuildIndex} of the job.
+ */
+final class BuildRecord {
+    private final Job<?, ?> job;
+    private final int number;
+    private final long timeInMillis;
+    private final Result result;
+    private final boolean building;
+    private final boolean keepLog;
+    private final long logSize;
+    /**
+     * Whether the log and artifacts of the build were stripped by {@link StrippedBuildAction}.
+     */
+    private final boolean stripped;
+    /**
+     * Name of the charset of the log, or {@code null} if it is not known.
+     */
+    private final String charset;
+    /**
+     * Size of the build directory, or -1 until it is computed.
+     */
+    private long diskUsage;
+    /**
+     * The build, if it was already loaded when the record was created.
+     */
+    private final Run<?, ?> run;
+
+    BuildRecord(
+            Job<?, ?> job,
+            int number,
+            long timeInMillis,
+            Result result,
+            boolean building,
+            boolean keepLog,
+            long logSize) {
+        this(job, number, timeInMillis, result, building, keepLog, logSize, -1, false, null);
+    }
+
+    BuildRecord(
+            Job<?, ?> job,
+            int number,
+            long timeInMillis,
+            Result result,
+            boolean building,
+            boolean keepLog,
+            long logSize,
+            long diskUsage) {
+        this(job, number, timeInMillis, result, building, keepLog, logSize, diskUsage, false);
+    }
+
+    BuildRecord(
+            Job<?, ?> job,
+            int number,
+            long timeInMillis,
+            Result result,
+            boolean building,
+            boolean keepLog,
+            long logSize,
+            long diskUsage,
+            boolean stripped) {
+        this(job, number, timeInMillis, result, building, keepLog, logSize, diskUsage, stripped, null, null);
+    }
+
+    BuildRecord(
+            Job<?, ?> job,
+            int number,
+            long timeInMillis,
+            Result result,
+            boolean building,
+            boolean keepLog,
+            long logSize,
+            long diskUsage,
+            boolean stripped,
+            String charset) {
+        this(job, number, timeInMillis, result, building, keepLog, logSize, diskUsage, stripped, charset, null);
+    }
+
+    private BuildRecord(
+            Job<?, ?> job,
+            int number,
+            long timeInMillis,
+            Result result,
+            boolean building,
+            boolean keepLog,
+            long logSize,
+            long diskUsage,
+            boolean stripped,
+            String charset,
+            Run<?, ?> run) {
+        this.job = job;
+        this.number = number;
+        this.timeInMillis = timeInMillis;
+        this.result = result;
+        this.building = building;
+        this.keepLog = keepLog;
+        this.logSize = logSize;
+        this.diskUsage = diskUsage;
+        this.stripped = stripped;
+        this.charset = charset;
+        this.run = run;
+    }
+
+    /**
+     * Creates the record of a loaded build, keeping a reference to it. The size of the build directory is left
+     * to be computed on first use.
+     */
+    static BuildRecord of(Run<?, ?> r) {
+        return of(r, false);
+    }
+
+    /**
+     * Creates the record of a loaded build, keeping a reference to it.
+     *
+     * @param diskUsage whether to compute the size of the build directory now, if the build is completed,
+     *     rather than on first use
+     */
+    static BuildRecord of(Run<?, ?> r, boolean diskUsage) {
+        return new BuildRecord(
+                r.getParent(),
+                r.getNumber(),
+                r.getTimeInMillis(),
+                r.getResult(),
+                r.isBuilding(),
+                r.isKeepLog(),
+                logSize(r.getLogFile()),
+                diskUsage && !r.isBuilding() ? diskUsage(r.getParent(), r.getNumber()) : -1,
+                r.getAction(StrippedBuildAction.class) != null,
+                r.getCharset().name(),
+                r);
+    }
+
+    /**
+     * @return the same record without the reference to the build, which may then be unloaded by Jenkins
+     */
+    BuildRecord detach() {
+        if (run == null) return this;
+        return new BuildRecord(
+                job, number, timeInMillis, result, building, keepLog, logSize, diskUsage, stripped, charset, null);
+    }
+
+    Job<?, ?> getJob() {
+        return job;
+    }
+
+    int getNumber() {
+        return number;
+    }
+
+    /**
+     * @return time the build was scheduled, as {@link Run#getTimeInMillis()}
+     */
+    long getTimeInMillis() {
+        return timeInMillis;
+    }
+
+    Result getResult() {
+        return result;
+    }
+
+    boolean isBuilding() {
+        return building;
+    }
+
+    boolean isKeepLog() {
+        return keepLog;
+    }
+
+    /**
+     * @return length of the log when the build completed, once uncompressed
+     */
+    long getLogSize() {
+        return logSize;
+    }
+
+    /**
+     * @return true if only the record of the build is left, its log and artifacts having been stripped
+     */
+    boolean isStripped() {
+        return stripped;
+    }
+
+    /**
+     * @return name of the charset of the log, or {@code null} if it is not known
+     */
+    String getCharsetName() {
+        return charset;
+    }
+
+    /**
+     * @return charset of the log, or {@code null} if it is not known without loading the build
+     */
+    Charset getCharset() {
+        if (run != null) return run.getCharset();
+        if (charset == null) return null;
+        try {
+            return Charset.forName(charset);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Loads the build, unless it already was.
+     *
+     * @return the build, or {@code null} if it no longer exists
+     */
+    Run<?, ?> getRun() {
+        return run != null ? run : job.getBuildByNumber(number);
+    }
+
+    /**
+     * @return log file of the build, located without loading the build
+     */
+    File getLogFile() {
+        if (run != null) return run.getLogFile();
+        // same as Run.getLogFile()
+        File dir = new File(job.getBuildDir(), Integer.toString(number));
+        File log = new File(dir, "log");
+        if (!log.isFile()) {
+            File gz = new File(dir, "log.gz");
+            if (gz.isFile()) return gz;
+        }
+        return log;
+    }
+
+    /**
+     * Returns the size of a log. The size of a gzipped log is read from its trailer rather than by inflating it;
+     * the trailer only has the size modulo 4 GiB, and that of the last member of the file.
+     *
+     * @return bytes of the log once uncompressed
+     */
+    static long logSize(File log) {
+        if (!LogScanner.isCompressed(log)) return log.length();
+        try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            // shorter than a header and a trailer
+            if (size < 18) return size;
+            ByteBuffer trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (trailer.hasRemaining()) {
+                if (channel.read(trailer, size - trailer.remaining()) == -1) return size;
+            }
+            return trailer.getInt(0) & 0xffffffffL;
+        } catch (IOException e) {
+            return log.length();
+        }
+    }
+
+    /**
+     * Returns the size of the build directory, as recorded in the {@link BuildIndex}. Otherwise it is computed,
+     * and recorded for the next evaluations if the build is completed.
+     *
+     * @return bytes deleting the build would reclaim, or 0 if they cannot be counted
+     */
+    long getDiskUsage() {
+        if (diskUsage == -1) {
+            diskUsage = diskUsage(job, number);
+            if (!building) BuildIndex.putDiskUsage(job, number, diskUsage);
+        }
+        return diskUsage;
+    }
+
+    void setDiskUsage(long diskUsage) {
+        this.diskUsage = diskUsage;
+    }
+
+    /**
+     * @return size of the build directory, or -1 if it was not computed yet
+     */
+    long getRecordedDiskUsage() {
+        return diskUsage;
+    }
+
+    private static long diskUsage(Job<?, ?> job, int number) {
+        return diskUsage(new File(job.getBuildDir(), Integer.toString(number)));
+    }
+
+    /**
+     * Adds up the size of the files in a directory. Symbolic links are not followed.
+     *
+     * @return bytes, or 0 if they cannot be counted
+     */
+    static long diskUsage(File dir) {
+        try (Stream<Path> files = Files.walk(dir.toPath())) {
+            return files.filter(Files::isRegularFile)
+                    .mapToLong(file -> file.toFile().length())
+                    .sum();
+        } catch (IOException | UncheckedIOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return run != null ? run.toString() : job.getFullDisplayName() + " #" + number;
+    }
+}
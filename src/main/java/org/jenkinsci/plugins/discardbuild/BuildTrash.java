@@ -0,0 +1,247 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Controller-wide trash into which discarded builds are moved instead of being deleted, so that a discard takes
+ * the same time however large the builds are. The files of a build are renamed into the trash, which is only
+ * possible within a file system, before the build itself is deleted, which then only removes an empty directory.
+ * The {@link Purger} deletes the content of the trash in the background, throttled by the
+ * {@link DeletionRateLimiter}.
+ *
+ * <p>The files of a build are staged under a name ending with {@value #STAGING_SUFFIX}, and only given their final
+ * name once the build is deleted, as they are put back if that fails. The purger skips the entries being staged,
+ * which are tracked in memory, so staged entries left over by a crash are purged like any other.
+ *
+ * <p>The trash is a directory of {@code JENKINS_HOME}, so whatever it holds is purged after a restart too. Once it
+ * holds more than its maximum size, or when builds are on another file system, builds are deleted directly.
+ */
+final class BuildTrash {
+    private static final Logger LOGGER = Logger.getLogger(BuildTrash.class.getName());
+
+    static final String DIR_NAME = "discard-old-build-trash";
+
+    static final String STAGING_SUFFIX = ".tmp";
+
+    private final File dir;
+    private volatile long maxSize;
+    /**
+     * Bytes held by the trash, or -1 until counted.
+     */
+    private long size = -1;
+
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    /**
+     * Names of the entries being staged, left over ones are purged.
+     */
+    private final Set<String> staging = new HashSet<String>();
+
+    /**
+     * @param dir     directory holding the trash
+     * @param maxSize bytes the trash may hold, or -1 for no limit
+     */
+    BuildTrash(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the trash of the controller, or {@code null} if builds are deleted directly
+     */
+    static BuildTrash get() {
+        if (Jenkins.getInstanceOrNull() == null) return null;
+        DiscardOldBuildConfiguration config = DiscardOldBuildConfiguration.get();
+        return config.isMoveToTrash() ? config.trash() : null;
+    }
+
+    void configure(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return bytes held by the trash
+     */
+    synchronized long getSize() {
+        if (size == -1) size = BuildRecord.diskUsage(dir);
+        return size;
+    }
+
+    /**
+     * @return true if the trash has room for a build of the given size
+     */
+    synchronized boolean hasRoom(long buildSize) {
+        return maxSize == -1 || getSize() + buildSize <= maxSize;
+    }
+
+    /**
+     * Deletes a build, moving its files into the trash first.
+     *
+     * @param r         build to delete
+     * @param buildSize bytes the files of the build use
+     * @return false if the trash cannot take the build, which is then left untouched
+     * @throws IOException if the build could not be deleted; its files are then put back
+     */
+    boolean delete(Run<?, ?> r, long buildSize) throws IOException {
+        synchronized (this) {
+            if (!hasRoom(buildSize)) return false;
+            size = getSize() + buildSize;
+        }
+        File rootDir = r.getRootDir();
+        String name = System.currentTimeMillis() + "-" + sequence.incrementAndGet();
+        File entry = new File(dir, name + STAGING_SUFFIX);
+        synchronized (this) {
+            staging.add(entry.getName());
+        }
+        try {
+            try {
+                if (!moveAll(rootDir, entry)) {
+                    release(entry, buildSize);
+                    return false;
+                }
+            } catch (IOException e) {
+                release(entry, buildSize);
+                throw e;
+            }
+            try {
+                r.delete();
+            } catch (IOException e) {
+                moveAll(entry, rootDir);
+                release(entry, buildSize);
+                throw e;
+            }
+            try {
+                Files.move(entry.toPath(), new File(dir, name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // purged under its staging name then
+                LOGGER.log(Level.WARNING, "Failed to rename " + entry, e);
+            }
+            return true;
+        } finally {
+            synchronized (this) {
+                staging.remove(entry.getName());
+            }
+        }
+    }
+
+    private void release(File entry, long buildSize) throws IOException {
+        synchronized (this) {
+            size -= buildSize;
+        }
+        Files.deleteIfExists(entry.toPath());
+    }
+
+    /**
+     * @return true if a build is being moved into the entry, which it may still be moved out of
+     */
+    private synchronized boolean isStaging(String name) {
+        return staging.contains(name);
+    }
+
+    /**
+     * Moves the files of a directory into another one, {@code build.xml} last so that a build cut short by a crash
+     * still loads.
+     *
+     * @return false if nothing was moved because the directories are on different file systems
+     * @throws IOException if a file could not be moved; those moved before are put back
+     */
+    private static boolean moveAll(File from, File to) throws IOException {
+        String[] names = from.list();
+        if (names == null) return false;
+        Arrays.sort(names, (a, b) -> Boolean.compare(a.equals("build.xml"), b.equals("build.xml")));
+        Files.createDirectories(to.toPath());
+        for (int i = 0; i < names.length; i++) {
+            try {
+                Files.move(
+                        new File(from, names[i]).toPath(),
+                        new File(to, names[i]).toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                if (i == 0) {
+                    LOGGER.log(Level.FINE, "Cannot move " + from + " to " + to, e);
+                    return false;
+                }
+                for (int j = 0; j < i; j++) {
+                    Files.move(new File(to, names[j]).toPath(), new File(from, names[j]).toPath());
+                }
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the content of the trash, oldest first, but for the entries being staged.
+     *
+     * @param limiter throttles the deletions
+     * @return number of builds purged
+     */
+    int purge(DeletionRateLimiter limiter) throws InterruptedException {
+        String[] names = dir.list();
+        if (names == null) return 0;
+        Arrays.sort(names);
+        List<File> entries = new ArrayList<File>();
+        for (String name : names) {
+            if (isStaging(name)) continue;
+            entries.add(new File(dir, name));
+        }
+
+        int purged = 0;
+        for (File entry : entries) {
+            long entrySize = BuildRecord.diskUsage(entry);
+            limiter.acquire(entrySize, -1);
+            try {
+                Util.deleteRecursive(entry);
+                purged++;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to purge " + entry, e);
+                continue;
+            }
+            synchronized (this) {
+                if (size != -1) size = Math.max(0, size - entrySize);
+            }
+        }
+        return purged;
+    }
+
+    /**
+     * Purges the trash of the controller.
+     */
+    @Extension
+    public static final class Purger extends AsyncPeriodicWork {
+
+        public Purger() {
+            super("Discard old builds trash purger");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws InterruptedException {
+            if (Jenkins.getInstanceOrNull() == null) return;
+            // also purges what is left after moving to the trash was turned off
+            int purged = DiscardOldBuildConfiguration.get().trash().purge(DeletionRateLimiter.get());
+            if (purged > 0) listener.getLogger().printf("Purged %d builds%n", purged); // $NON-NLS-1$
+        }
+    }
+}
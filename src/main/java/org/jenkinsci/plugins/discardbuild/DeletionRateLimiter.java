@@ -0,0 +1,151 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+
+/**
+ * Controller-wide limit on the number of builds and bytes deleted per second, shared by all the
+ * {@link BuildDeleter}s, so that discarding a large backlog does not saturate {@code JENKINS_HOME}.
+ *
+ * <p>Both limits are token buckets holding up to one second worth of deletions. A deletion larger than the
+ * bucket is let through once the bucket is full, and the debt is paid by the deletions after it.
+ */
+final class DeletionRateLimiter {
+
+    /**
+     * Limiter which never throttles.
+     */
+    static final DeletionRateLimiter UNLIMITED = new DeletionRateLimiter(-1, -1, -1);
+
+    private final Clock clock;
+    private volatile TokenBucket deletions;
+    private volatile TokenBucket bytes;
+    private volatile long maxThrottle;
+
+    /**
+     * @param deletionsPerSecond builds deleted per second, or -1 for no limit
+     * @param bytesPerSecond     bytes deleted per second, or -1 for no limit
+     * @param maxThrottle        nanoseconds a single discard may be throttled for, or -1 for no limit
+     */
+    DeletionRateLimiter(double deletionsPerSecond, long bytesPerSecond, long maxThrottle) {
+        this(deletionsPerSecond, bytesPerSecond, maxThrottle, Clock.SYSTEM);
+    }
+
+    DeletionRateLimiter(double deletionsPerSecond, long bytesPerSecond, long maxThrottle, Clock clock) {
+        this.clock = clock;
+        configure(deletionsPerSecond, bytesPerSecond, maxThrottle);
+    }
+
+    /**
+     * @return the limiter of the controller, or {@link #UNLIMITED} outside of Jenkins
+     */
+    static DeletionRateLimiter get() {
+        return Jenkins.getInstanceOrNull() == null ? UNLIMITED : DiscardOldBuildConfiguration.get().limiter();
+    }
+
+    void configure(double deletionsPerSecond, long bytesPerSecond, long maxThrottle) {
+        long now = clock.nanoTime();
+        this.deletions = deletionsPerSecond > 0 ? new TokenBucket(deletionsPerSecond, now) : null;
+        this.bytes = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, now) : null;
+        this.maxThrottle = maxThrottle;
+    }
+
+    /**
+     * @return nanoseconds a single discard may be throttled for before leaving the remaining builds for the
+     *     next one, or -1
+     */
+    long getMaxThrottle() {
+        return maxThrottle;
+    }
+
+    /**
+     * @return true if the bytes deleted are limited, so that the size of each build is needed
+     */
+    boolean limitsBytes() {
+        return bytes != null;
+    }
+
+    /**
+     * Waits until a build may be deleted, unless that takes too long.
+     *
+     * @param size    bytes the deletion will reclaim
+     * @param maxWait maximum nanoseconds to wait, or -1 to wait as long as needed
+     * @return nanoseconds waited, or -1 if the build should be left for later; nothing is then taken
+     */
+    long acquire(long size, long maxWait) throws InterruptedException {
+        TokenBucket deletions = this.deletions;
+        TokenBucket bytes = this.bytes;
+        if (deletions == null && bytes == null) return 0;
+
+        long wait;
+        // take both or neither
+        synchronized (this) {
+            long now = clock.nanoTime();
+            wait = Math.max(
+                    deletions == null ? 0 : deletions.waitFor(1, now),
+                    bytes == null ? 0 : bytes.waitFor(size, now));
+            if (maxWait != -1 && wait > maxWait) return -1;
+            if (deletions != null) deletions.take(1, now);
+            if (bytes != null) bytes.take(size, now);
+        }
+        if (wait > 0) clock.sleep(wait);
+        return wait;
+    }
+
+    /**
+     * Source of time of the limiter, replaced by tests.
+     */
+    interface Clock {
+        Clock SYSTEM = new Clock() {
+            @Override
+            public long nanoTime() {
+                return System.nanoTime();
+            }
+
+            @Override
+            public void sleep(long nanos) throws InterruptedException {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            }
+        };
+
+        long nanoTime();
+
+        void sleep(long nanos) throws InterruptedException;
+    }
+
+    private static final class TokenBucket {
+        private final double perNano;
+        private final double capacity;
+        private double tokens;
+        private long last;
+
+        TokenBucket(double perSecond, long now) {
+            this.perNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = perSecond;
+            this.tokens = perSecond;
+            this.last = now;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - last) * perNano);
+            last = now;
+        }
+
+        /**
+         * @return nanoseconds until the amount may be taken
+         */
+        long waitFor(long amount, long now) {
+            refill(now);
+            double needed = Math.min(amount, capacity) - tokens;
+            return needed <= 0 ? 0 : (long) Math.ceil(needed / perNano);
+        }
+
+        /**
+         * Takes the amount, possibly leaving the bucket in debt.
+         */
+        void take(long amount, long now) {
+            refill(now);
+            tokens -= amount;
+        }
+    }
+}
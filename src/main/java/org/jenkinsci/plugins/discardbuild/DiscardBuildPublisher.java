@@ -1,30 +1,31 @@
 package org.jenkinsci.plugins.discardbuild;
 
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.*;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
-import hudson.util.RunList;
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.ArrayList;
+import hudson.util.FormValidation;
 import java.util.Calendar;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
 
 /**
  * Plugin that discards old build histories with greater user configurability than the core function.
  * Enables discarding builds by status, keeping older builds for every N builds / N days,
- * or discarding builds which have too small or too large logfile size (along with a combination of some of these).
+ * discarding builds which have too small or too large logfile size, or discarding builds until the job fits in a disk
+ * budget (along with a combination of some of these).
  *
  * @author tamagawahiroko, benjaminbeggs
  */
@@ -69,6 +70,70 @@ public class DiscardBuildPublisher extends Recorder {
      * Regular expression.
      */
     private final String regexp;
+    /**
+     * Labelled regular expressions, one {@code label=regexp} per line, searched for together with {@link #regexp}.
+     */
+    private String logPatterns;
+    /**
+     * If not -1, {@link #regexp} is only searched for in this number of bytes at the start of logs.
+     */
+    private long regexpHeadSize = -1;
+    /**
+     * If not -1, {@link #regexp} is only searched for in this number of bytes at the end of logs.
+     */
+    private long regexpTailSize = -1;
+    /**
+     * If true, builds are discarded by the {@link DiscardQueue} instead of while the build holds its executor.
+     */
+    private boolean discardInBackground;
+    /**
+     * If greater than 1, discarded builds are deleted by up to this number of threads.
+     */
+    private int deletionThreads = -1;
+    /**
+     * If greater than 1, logs are scanned for {@link #regexp} by up to this number of threads.
+     */
+    private int logScanThreads = -1;
+    /**
+     * If true, builds which would be discarded are only logged.
+     */
+    private boolean dryRun;
+    /**
+     * If true, {@link #minLogFileSize} and {@link #maxLogFileSize} apply to gzipped logs as they are on disk
+     * rather than once uncompressed.
+     */
+    private boolean compressedLogFileSize;
+    /**
+     * If true, logs bigger than {@link #maxLogFileSize} are compacted instead of their builds being discarded.
+     */
+    private boolean compactLogs;
+    /**
+     * If not -1, compacted logs are cut down to this number of bytes at their start, and {@link #compactedLogTailSize}
+     * bytes at their end. Otherwise, they are gzipped.
+     */
+    private long compactedLogHeadSize = -1;
+    /**
+     * If not -1, compacted logs are cut down to this number of bytes at their end, and {@link #compactedLogHeadSize}
+     * bytes at their start.
+     */
+    private long compactedLogTailSize = -1;
+    /**
+     * If not -1, builds are discarded until the builds kept use at most this number of megabytes.
+     */
+    private long maxDiskUsage = -1;
+    /**
+     * If true, {@link #maxDiskUsage} discards the largest builds first instead of the oldest ones.
+     */
+    private boolean discardLargestFirst;
+    /**
+     * If not -1, the rules reading logs stop after this number of seconds, and the next discard resumes from there.
+     */
+    private long evaluationTimeBudget = -1;
+    /**
+     * Names of the rules which only strip the log and artifacts of the builds they select, separated by spaces or
+     * commas, e.g. {@code daysToKeep maxDiskUsage}.
+     */
+    private String stripRules;
 
     @DataBoundConstructor
     public DiscardBuildPublisher(
@@ -118,7 +183,7 @@ public class DiscardBuildPublisher extends Recorder {
         this.holdMaxBuilds = holdMaxBuilds;
     }
 
-    private static int parse(String p) {
+    static int parse(String p) {
         if (p == null) return -1;
         try {
             return Integer.parseInt(p);
@@ -136,23 +201,7 @@ public class DiscardBuildPublisher extends Recorder {
         }
     }
 
-    @SuppressFBWarnings(
-            value = "DM_DEFAULT_ENCODING",
-            justification = "Replace in Java 11 with two argument FileReader call")
-    private static boolean isRegexpMatch(File logFile, String regexp) throws IOException, InterruptedException {
-        if (regexp == null) return false;
-        String line;
-        Pattern pattern = Pattern.compile(regexp);
-        try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
-            while ((line = reader.readLine()) != null) {
-                Matcher matcher = pattern.matcher(line);
-                if (matcher.find()) return true;
-            }
-        }
-        return false;
-    }
-
-    private static String intToString(int i) {
+    static String intToString(int i) {
         if (i == -1) {
             return ""; //$NON-NLS-1$
         } else {
@@ -168,265 +217,184 @@ public class DiscardBuildPublisher extends Recorder {
         }
     }
 
-    @SuppressFBWarnings(
-            value = "SIC_INNER_SHOULD_BE_STATIC",
-            justification = "Evaluate later if interest in the plugin rises")
-    class ExtendRunList extends RunList<Run<?, ?>> {
-        private ArrayList<Run<?, ?>> newList;
-
-        ExtendRunList() {
-            newList = new ArrayList<Run<?, ?>>();
-        }
-
-        ArrayList<Run<?, ?>> getNewList() {
-            return newList;
+    @Override
+    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+        if (dryRun) {
+            listener.getLogger().println("Discard old builds (dry run)..."); // $NON-NLS-1$
+            logPlan(build.getParent(), listener);
+            return true;
         }
-
-        @Override
-        public boolean add(Run<?, ?> run) {
-            newList.add(run);
+        if (discardInBackground) {
+            listener.getLogger().println("Discard old builds in background..."); // $NON-NLS-1$
+            DiscardQueue.get().schedule(build.getParent(), this);
             return true;
         }
+
+        listener.getLogger().println("Discard old builds..."); // $NON-NLS-1$
+        discard(build.getParent(), listener);
+        return true;
     }
 
-    private ArrayList<Run<?, ?>> keepLastBuilds(
-            AbstractBuild<?, ?> build, BuildListener listener, RunList<Run<?, ?>> builds) {
-        Job<?, ?> job = (Job<?, ?>) build.getParent();
-
-        ExtendRunList newList = new ExtendRunList();
-        Run lastBuild = job.getLastBuild();
-        Run lastCompletedBuild = job.getLastCompletedBuild();
-        Run lastFailedBuild = job.getLastFailedBuild();
-        Run lastStableBuild = job.getLastStableBuild();
-        Run lastSuccessfulBuild = job.getLastSuccessfulBuild();
-        Run lastUnstableBuild = job.getLastUnstableBuild();
-        Run lastUnsuccessfulBuild = job.getLastUnsuccessfulBuild();
-
-        for (Run<?, ?> r : builds) {
-            if (r.isBuilding()) continue;
-            if (r == lastBuild) continue;
-            if (r == lastCompletedBuild) continue;
-            if (r == lastFailedBuild) continue;
-            if (r == lastStableBuild) continue;
-            if (r == lastSuccessfulBuild) continue;
-            if (r == lastUnstableBuild) continue;
-            if (r == lastUnsuccessfulBuild) continue;
-            newList.add(r);
+    /**
+     * Discard the builds of a job selected by the configured conditions, or leave that to the discard of the job
+     * already running.
+     *
+     * @param job      job whose history to discard
+     * @param listener listener to log discarded builds to
+     */
+    void discard(Job<?, ?> job, TaskListener listener) {
+        try {
+            if (!DiscardFlights.discard(job, this, listener)) {
+                listener.getLogger()
+                        .println("Discard old builds: merged into the discard already running"); // $NON-NLS-1$
+            }
+        } catch (InterruptedException e) {
+            listener.getLogger().println("Discard old builds: interrupted"); // $NON-NLS-1$
+            Thread.currentThread().interrupt();
         }
+    }
 
-        return newList.getNewList();
+    /**
+     * Discard the builds of a job selected by the configured conditions, while no other discard of the job runs.
+     */
+    void discardOnce(Job<?, ?> job, TaskListener listener) {
+        // priority influence discard results
+        DiscardPlan plan = new RetentionEvaluator(this, listener).evaluate(job);
+        new BuildDeleter(deletionThreads, DeletionRateLimiter.get(), BuildTrash.get(), logCompactor())
+                .delete(plan, listener);
+        listener.getLogger().println("Discard old builds: " + plan.getStats().summary()); // $NON-NLS-1$
+        RetentionMetrics.publish(job, plan.getStats());
     }
 
-    private ArrayList<Run<?, ?>> discardLastBuilds(
-            AbstractBuild<?, ?> build, BuildListener listener, RunList<Run<?, ?>> builds) {
-        ExtendRunList newList = new ExtendRunList();
-        for (Run<?, ?> r : builds) {
-            newList.add(r);
-        }
-        return newList.getNewList();
-    }
-
-    private ArrayList<Run<?, ?>> processHoldMaxBuilds(
-            ArrayList<Run<?, ?>> listIn, BuildListener listener, int maxCount) {
-        ArrayList<Run<?, ?>> listUpdt = listIn;
-        int listCnt = listUpdt.size();
-        if (listCnt < maxCount || listCnt == maxCount) { // clear discard list if beneath minimum build quantity
-            listener.getLogger().println("Too few builds present to remove any, clearing discard list.");
-            listUpdt.clear();
-        } else if (listCnt > maxCount) {
-            listener.getLogger().println("Removing builds from discard list to maintain max quantity:");
-            for (int i = 0; i < maxCount; i++) {
-                listener.getLogger().println(listUpdt.get(0));
-                listUpdt.remove(0);
-            }
+    /**
+     * Applies the configured conditions to a job outside of its builds, as {@link #perform} would, except
+     * that builds are discarded immediately even if {@link #isDiscardInBackground()}.
+     *
+     * @param job      job whose history to discard
+     * @param listener listener to log discarded builds to
+     */
+    void apply(Job<?, ?> job, TaskListener listener) {
+        if (dryRun) {
+            logPlan(job, listener);
+        } else {
+            discard(job, listener);
         }
-        return listUpdt;
     }
 
-    private void deleteOldBuildsByRegexp(AbstractBuild<?, ?> build, BuildListener listener, String regexp) {
-        ArrayList<Run<?, ?>> list = updateBuildsList(build, listener);
-        if (regexp == null || regexp.equals("")) return;
-        try {
-            for (Run<?, ?> r : list) {
-                if (isRegexpMatch(r.getLogFile(), regexp)) {
-                    discardBuild(r, "match regular expression", listener);
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    private void logPlan(Job<?, ?> job, TaskListener listener) {
+        DiscardPlan plan = plan(job, listener);
+        for (DiscardPlan.Entry entry : plan) {
+            String format = entry.getMode() == DiscardPlan.Mode.STRIP
+                    ? "#%d would be stripped because %s%n" // $NON-NLS-1$
+                    : entry.getMode() == DiscardPlan.Mode.COMPACT_LOG
+                            ? "The log of #%d would be compacted because %s%n" // $NON-NLS-1$
+                            : "#%d would be removed because %s%n"; // $NON-NLS-1$
+            listener.getLogger().printf(format, entry.getNumber(), entry.getReason());
         }
+        listener.getLogger().println("Discard old builds: " + plan.getStats().summary()); // $NON-NLS-1$
     }
 
-    private void deleteOldBuildsByLogfileSize(
-            AbstractBuild<?, ?> build, BuildListener listener, long minLogFileSize, long maxLogFileSize) {
-        ArrayList<Run<?, ?>> list = updateBuildsList(build, listener);
-        try {
-            if (minLogFileSize != -1 || maxLogFileSize != -1) {
-                for (Run<?, ?> r : list) {
-                    long size = r.getLogFile().length();
-                    if (minLogFileSize == -1 && size > maxLogFileSize)
-                        discardBuild(r, "log file size=" + size + " which is too big", listener);
-                    else if (maxLogFileSize == -1 && size < minLogFileSize)
-                        discardBuild(r, "log file size=" + size + " which is too small", listener);
-                    else if (minLogFileSize != -1
-                            && maxLogFileSize != -1
-                            && (size < minLogFileSize || size > maxLogFileSize)) {
-                        discardBuild(r, "log file size=" + size + " which is too small or too big", listener);
-                    }
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Computes the builds of a job which would be discarded, without deleting them or recording that they
+     * were evaluated.
+     *
+     * @param job      job whose history to evaluate
+     * @param listener listener to log to
+     * @return builds which would be discarded, newest first
+     */
+    DiscardPlan plan(Job<?, ?> job, TaskListener listener) {
+        return new RetentionEvaluator(this, listener, true).evaluate(job);
     }
 
-    private void deleteOldBuildsByDays(AbstractBuild<?, ?> build, BuildListener listener, int daysToKeep) {
-        ArrayList<Run<?, ?>> list = updateBuildsList(build, listener);
-        if (daysToKeep == -1) return;
-        if (numToKeep != -1 && isHoldMaxBuilds()) list = processHoldMaxBuilds(list, listener, numToKeep);
-        try {
-            Calendar cal = getCurrentCalendar();
-            cal.add(Calendar.DAY_OF_YEAR, -daysToKeep);
-            for (Run<?, ?> r : list) {
-                if (r.getTimestamp().before(cal)) {
-                    discardBuild(r, "it is older than daysToKeep", listener); // $NON-NLS-1$
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace(listener.error("")); // $NON-NLS-1$
-        }
+    int daysToKeep() {
+        return daysToKeep;
     }
 
-    private void deleteOldBuildsByIntervalDays(
-            AbstractBuild<?, ?> build, BuildListener listener, int intervalDaysToKeep) {
-        ArrayList<Run<?, ?>> list = updateBuildsList(build, listener);
-        if (intervalDaysToKeep == -1) return;
-        try {
-            Run<?, ?> prev = null;
-
-            for (Run<?, ?> r : list) {
-                if (prev == null) {
-                    prev = r; // The first build is the latest build
-                    continue;
-                } else {
-                    Calendar prevCal = getCurrentCalendar();
-                    prevCal.setTime(prev.getTimestamp().getTime());
-                    prevCal.add(Calendar.DAY_OF_YEAR, -intervalDaysToKeep);
-                    if (r.getTimestamp().after(prevCal)) {
-                        discardBuild(r, "it is old and within build days interval", listener); // $NON-NLS-1$
-                        continue;
-                    }
-                    prev = r;
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace(listener.error("")); // $NON-NLS-1$
-        }
+    int numToKeep() {
+        return numToKeep;
     }
 
-    private void deleteOldBuildsByNum(AbstractBuild<?, ?> build, BuildListener listener, int numToKeep) {
-        ArrayList<Run<?, ?>> list = updateBuildsList(build, listener);
-        if (numToKeep == -1) return;
-        int index = 0;
-        if (daysToKeep != -1 && isHoldMaxBuilds()) return;
-        try {
-            for (Run<?, ?> r : list) {
-                if (index >= numToKeep) discardBuild(r, "old than numToKeep", listener);
-                index++;
-            }
-        } catch (IOException e) {
-            e.printStackTrace(listener.error(""));
-        }
+    int intervalDaysToKeep() {
+        return intervalDaysToKeep;
     }
 
-    private void deleteOldBuildsByIntervalNum(
-            AbstractBuild<?, ?> build, BuildListener listener, int intervalNumToKeep) {
-        ArrayList<Run<?, ?>> list = updateBuildsList(build, listener);
-        if (intervalNumToKeep == -1) return;
-        int index = 0;
-        try {
-            if (intervalNumToKeep == 1) intervalNumToKeep = 2;
-            for (Run<?, ?> r : list) {
-                if ((index % intervalNumToKeep) != 0) {
-                    discardBuild(r, "it is old and within build number interval", listener);
-                }
-                index++;
-            }
-        } catch (IOException e) {
-            e.printStackTrace(listener.error(""));
-        }
+    int intervalNumToKeep() {
+        return intervalNumToKeep;
     }
 
-    private void deleteOldBuildsByStatus(
-            AbstractBuild<?, ?> build, BuildListener listener, Set<Result> resultsToDiscard) {
-        ArrayList<Run<?, ?>> list = updateBuildsList(build, listener);
-        try {
-            for (Run<?, ?> r : list) {
-                discardByStatus(r, resultsToDiscard, listener);
-            }
-        } catch (IOException e) {
-            e.printStackTrace(listener.error(""));
-        }
+    Set<Result> resultsToDiscard() {
+        return resultsToDiscard;
     }
 
-    private ArrayList<Run<?, ?>> updateBuildsList(AbstractBuild<?, ?> build, BuildListener listener) {
-        ArrayList<Run<?, ?>> list;
-        Job<?, ?> job = (Job<?, ?>) build.getParent();
-        RunList<Run<?, ?>> builds = (RunList<Run<?, ?>>) job.getBuilds();
-        if (isKeepLastBuilds()) list = keepLastBuilds(build, listener, builds);
-        else list = discardLastBuilds(build, listener, builds);
-        return list;
+    long minLogFileSize() {
+        return minLogFileSize;
     }
 
-    @Override
-    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
-        listener.getLogger().println("Discard old builds..."); // $NON-NLS-1$
+    long maxLogFileSize() {
+        return maxLogFileSize;
+    }
 
-        // priority influence discard results
-        deleteOldBuildsByDays(build, listener, daysToKeep);
-        deleteOldBuildsByNum(build, listener, numToKeep);
-        deleteOldBuildsByIntervalDays(build, listener, intervalDaysToKeep);
-        deleteOldBuildsByIntervalNum(build, listener, intervalNumToKeep);
-        deleteOldBuildsByStatus(build, listener, resultsToDiscard);
-        deleteOldBuildsByLogfileSize(build, listener, minLogFileSize, maxLogFileSize);
-        deleteOldBuildsByRegexp(build, listener, regexp);
+    long regexpHeadSize() {
+        return regexpHeadSize;
+    }
 
-        return true;
+    long regexpTailSize() {
+        return regexpTailSize;
     }
 
     /**
-     * Discard builds with status that doesn't meet the setting.
-     *
-     * @param history   build history to discard
-     * @param resultSet set of results to be discard
-     * @param listener  build listener
-     * @return true if the build is discarded.
-     * @throws IOException when deletion failed
-     */
-    private boolean discardByStatus(Run<?, ?> history, Set<Result> resultSet, BuildListener listener)
-            throws IOException {
-        if (!resultSet.isEmpty() && resultSet.contains(history.getResult())) {
-            discardBuild(
-                    history, "status %s is not to be kept".formatted(history.getResult()), listener); // $NON-NLS-1$
-            return true;
-        } else {
-            return false;
+     * @return maximum disk usage in bytes, or -1
+     */
+    long maxDiskUsage() {
+        return maxDiskUsage == -1 ? -1 : maxDiskUsage * 1024 * 1024;
+    }
+
+    /**
+     * @return compactor of the logs which are too big, or {@code null} if their builds are discarded
+     */
+    LogCompactor logCompactor() {
+        return compactLogs ? new LogCompactor(compactedLogHeadSize, compactedLogTailSize) : null;
+    }
+
+    /**
+     * @return names of the rules which only strip the builds they select
+     */
+    Set<String> stripRules() {
+        return parseRules(stripRules);
+    }
+
+    /**
+     * @param rules names of rules separated by spaces or commas, or {@code null}
+     */
+    static Set<String> parseRules(String rules) {
+        Set<String> names = new HashSet<String>();
+        if (rules != null) {
+            for (String rule : rules.split("[\\s,]+")) {
+                if (!rule.isEmpty()) names.add(rule);
+            }
         }
+        return names;
     }
 
     /**
-     * Discard old build result with logging.
-     *
-     * @param history  build history to discard
-     * @param reason   reason to discard
-     * @param listener build listener
-     * @throws IOException when deletion failed
+     * @param rules names of rules separated by spaces or commas, or {@code null}
+     * @return the names which are not those of a rule, sorted
      */
-    private void discardBuild(Run<?, ?> history, String reason, BuildListener listener) throws IOException {
-        listener.getLogger().printf("#%d is removed because %s%n", history.getNumber(), reason); // $NON-NLS-1$
-        history.delete();
+    static Set<String> unknownRules(String rules) {
+        Set<String> unknown = new TreeSet<String>(parseRules(rules));
+        unknown.removeAll(RetentionEvaluator.RULE_NAMES);
+        return unknown;
+    }
+
+    int logScanThreads() {
+        return logScanThreads;
+    }
+
+    /**
+     * @return evaluation time budget in nanoseconds, or -1
+     */
+    long evaluationTimeBudget() {
+        return evaluationTimeBudget == -1 ? -1 : TimeUnit.SECONDS.toNanos(evaluationTimeBudget);
     }
 
     public String getDaysToKeep() {
@@ -457,6 +425,33 @@ public class DiscardBuildPublisher extends Recorder {
         return intToString(intervalNumToKeep);
     }
 
+    public String getLogPatterns() {
+        return logPatterns;
+    }
+
+    @DataBoundSetter
+    public void setLogPatterns(String logPatterns) {
+        this.logPatterns = logPatterns;
+    }
+
+    public String getRegexpHeadSize() {
+        return longToString(regexpHeadSize);
+    }
+
+    @DataBoundSetter
+    public void setRegexpHeadSize(String regexpHeadSize) {
+        this.regexpHeadSize = parseLong(regexpHeadSize);
+    }
+
+    public String getRegexpTailSize() {
+        return longToString(regexpTailSize);
+    }
+
+    @DataBoundSetter
+    public void setRegexpTailSize(String regexpTailSize) {
+        this.regexpTailSize = parseLong(regexpTailSize);
+    }
+
     public boolean isDiscardSuccess() {
         return resultsToDiscard.contains(Result.SUCCESS);
     }
@@ -485,6 +480,116 @@ public class DiscardBuildPublisher extends Recorder {
         return holdMaxBuilds;
     }
 
+    public boolean isDiscardInBackground() {
+        return discardInBackground;
+    }
+
+    @DataBoundSetter
+    public void setDiscardInBackground(boolean discardInBackground) {
+        this.discardInBackground = discardInBackground;
+    }
+
+    public String getLogScanThreads() {
+        return intToString(logScanThreads);
+    }
+
+    @DataBoundSetter
+    public void setLogScanThreads(String logScanThreads) {
+        this.logScanThreads = parse(logScanThreads);
+    }
+
+    public String getDeletionThreads() {
+        return intToString(deletionThreads);
+    }
+
+    @DataBoundSetter
+    public void setDeletionThreads(String deletionThreads) {
+        this.deletionThreads = parse(deletionThreads);
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    @DataBoundSetter
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public boolean isCompressedLogFileSize() {
+        return compressedLogFileSize;
+    }
+
+    @DataBoundSetter
+    public void setCompressedLogFileSize(boolean compressedLogFileSize) {
+        this.compressedLogFileSize = compressedLogFileSize;
+    }
+
+    public boolean isCompactLogs() {
+        return compactLogs;
+    }
+
+    @DataBoundSetter
+    public void setCompactLogs(boolean compactLogs) {
+        this.compactLogs = compactLogs;
+    }
+
+    public String getCompactedLogHeadSize() {
+        return longToString(compactedLogHeadSize);
+    }
+
+    @DataBoundSetter
+    public void setCompactedLogHeadSize(String compactedLogHeadSize) {
+        this.compactedLogHeadSize = parseLong(compactedLogHeadSize);
+    }
+
+    public String getCompactedLogTailSize() {
+        return longToString(compactedLogTailSize);
+    }
+
+    @DataBoundSetter
+    public void setCompactedLogTailSize(String compactedLogTailSize) {
+        this.compactedLogTailSize = parseLong(compactedLogTailSize);
+    }
+
+    public String getMaxDiskUsage() {
+        return longToString(maxDiskUsage);
+    }
+
+    @DataBoundSetter
+    public void setMaxDiskUsage(String maxDiskUsage) {
+        this.maxDiskUsage = parseLong(maxDiskUsage);
+    }
+
+    public boolean isDiscardLargestFirst() {
+        return discardLargestFirst;
+    }
+
+    @DataBoundSetter
+    public void setDiscardLargestFirst(boolean discardLargestFirst) {
+        this.discardLargestFirst = discardLargestFirst;
+    }
+
+    public String getStripRules() {
+        return stripRules;
+    }
+
+    @DataBoundSetter
+    public void setStripRules(String stripRules) {
+        Set<String> unknown = unknownRules(stripRules);
+        if (!unknown.isEmpty()) throw new IllegalArgumentException("Unknown rules " + unknown);
+        this.stripRules = Util.fixEmptyAndTrim(stripRules);
+    }
+
+    public String getEvaluationTimeBudget() {
+        return longToString(evaluationTimeBudget);
+    }
+
+    @DataBoundSetter
+    public void setEvaluationTimeBudget(String evaluationTimeBudget) {
+        this.evaluationTimeBudget = parseLong(evaluationTimeBudget);
+    }
+
     @Override
     public DescriptorImpl getDescriptor() {
         return (DescriptorImpl) super.getDescriptor();
@@ -512,6 +617,19 @@ public class DiscardBuildPublisher extends Recorder {
         public String getDisplayName() {
             return Messages.DiscardHistoryBuilder_description();
         }
+
+        @POST
+        public FormValidation doCheckStripRules(@AncestorInPath Item item, @QueryParameter String value) {
+            if (item == null) {
+                Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            } else {
+                item.checkPermission(Item.CONFIGURE);
+            }
+            Set<String> unknown = unknownRules(value);
+            if (unknown.isEmpty()) return FormValidation.ok();
+            return FormValidation.error("Unknown rules " + unknown + ", expected some of "
+                    + RetentionEvaluator.RULE_NAMES);
+        }
     }
 
     public BuildStepMonitor getRequiredMonitorService() {
@@ -0,0 +1,103 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.model.Job;
+import hudson.model.TaskListener;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Runs a single discard of each job at a time. When concurrent builds of a job complete together, a discard
+ * requested while another one is running is merged into it: the running discard evaluates the job once more when
+ * it completes, with the latest configuration, instead of both evaluating the same history and racing to delete
+ * the same builds. A discard only runs once more, so that it does not hold the executor of its build for the
+ * builds completing meanwhile; requests coming once it does wait for it to complete and run on their own.
+ */
+final class DiscardFlights {
+
+    /**
+     * Discards running, by job.
+     */
+    private static final ConcurrentMap<Job<?, ?>, Flight> RUNNING = new ConcurrentHashMap<Job<?, ?>, Flight>();
+
+    private DiscardFlights() {}
+
+    /**
+     * Discards the old builds of a job, unless a discard of the job is already running and can take the request,
+     * in which case it discards them again once it completes.
+     *
+     * @param job       job whose old builds are to be discarded
+     * @param publisher rules to apply
+     * @param listener  listener to log discarded builds to
+     * @return true if the builds were discarded by this thread, false if the discard was merged into a running one
+     * @throws InterruptedException if interrupted while waiting for the running discard to complete
+     */
+    static boolean discard(Job<?, ?> job, DiscardBuildPublisher publisher, TaskListener listener)
+            throws InterruptedException {
+        Flight flight = new Flight();
+        while (true) {
+            Flight running = RUNNING.putIfAbsent(job, flight);
+            if (running == null) break;
+            if (running.merge(publisher)) return false;
+            // already running once more, no longer taking requests
+            running.await();
+            RUNNING.remove(job, running);
+        }
+        try {
+            publisher.discardOnce(job, listener);
+            DiscardBuildPublisher next = flight.next();
+            if (next != null) next.discardOnce(job, listener);
+        } finally {
+            flight.close();
+            RUNNING.remove(job, flight);
+        }
+        return true;
+    }
+
+    private static final class Flight {
+        /**
+         * Rules of the latest request merged into the running discard, or {@code null}.
+         */
+        private DiscardBuildPublisher pending;
+
+        /**
+         * Whether requests are no longer merged.
+         */
+        private boolean full;
+
+        private boolean closed;
+
+        /**
+         * @return false if the discard no longer takes requests and the request has to be run on its own
+         */
+        synchronized boolean merge(DiscardBuildPublisher publisher) {
+            if (full) return false;
+            pending = publisher;
+            return true;
+        }
+
+        /**
+         * @return rules to discard once more with, or {@code null} if no request was merged; no more are after
+         */
+        synchronized DiscardBuildPublisher next() {
+            DiscardBuildPublisher next = pending;
+            pending = null;
+            full = true;
+            return next;
+        }
+
+        synchronized void close() {
+            full = true;
+            closed = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the discard to complete.
+         */
+        synchronized void await() throws InterruptedException {
+            while (!closed) {
+                wait();
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.Util;
+import hudson.scheduler.CronTabList;
+import hudson.scheduler.Hash;
+import hudson.util.FormValidation;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Global settings of the plugin: the schedule of the {@link DiscardSweeper}, the limits of the
+ * {@link DeletionRateLimiter} and the {@link BuildTrash}.
+ */
+@Extension
+public class DiscardOldBuildConfiguration extends GlobalConfiguration {
+    private static final Logger LOGGER = Logger.getLogger(DiscardOldBuildConfiguration.class.getName());
+
+    /**
+     * Cron schedule of the sweeps, or {@code null} if the sweeper is disabled.
+     */
+    private String schedule;
+    /**
+     * Number of jobs swept at the same time.
+     */
+    private int concurrency = 1;
+    /**
+     * Minutes after which a sweep stops starting jobs, or -1.
+     */
+    private int timeBudget = -1;
+    /**
+     * Builds deleted per second on the whole controller, or -1.
+     */
+    private int deletionsPerSecond = -1;
+    /**
+     * Megabytes deleted per second on the whole controller, or -1.
+     */
+    private int deletedMegabytesPerSecond = -1;
+    /**
+     * Seconds a single discard may be throttled for before leaving the remaining builds for the next one, or -1.
+     */
+    private int maxThrottle = -1;
+    /**
+     * If true, discarded builds are moved to the {@link BuildTrash} instead of being deleted.
+     */
+    private boolean moveToTrash;
+    /**
+     * Megabytes the trash may hold, or -1.
+     */
+    private int maxTrashSize = -1;
+
+    private final transient DeletionRateLimiter limiter;
+    private final transient BuildTrash trash;
+
+    public DiscardOldBuildConfiguration() {
+        load();
+        limiter = new DeletionRateLimiter(deletionsPerSecond, megabytes(deletedMegabytesPerSecond), maxThrottle());
+        trash = new BuildTrash(new File(Jenkins.get().getRootDir(), BuildTrash.DIR_NAME), megabytes(maxTrashSize));
+    }
+
+    static DiscardOldBuildConfiguration get() {
+        return ExtensionList.lookupSingleton(DiscardOldBuildConfiguration.class);
+    }
+
+    public String getSchedule() {
+        return schedule;
+    }
+
+    @DataBoundSetter
+    public void setSchedule(String schedule) {
+        this.schedule = Util.fixEmptyAndTrim(schedule);
+        save();
+    }
+
+    public String getConcurrency() {
+        return Integer.toString(concurrency);
+    }
+
+    @DataBoundSetter
+    public void setConcurrency(String concurrency) {
+        this.concurrency = Math.max(1, DiscardBuildPublisher.parse(concurrency));
+        save();
+    }
+
+    public String getTimeBudget() {
+        return DiscardBuildPublisher.intToString(timeBudget);
+    }
+
+    @DataBoundSetter
+    public void setTimeBudget(String timeBudget) {
+        this.timeBudget = DiscardBuildPublisher.parse(timeBudget);
+        save();
+    }
+
+    public String getDeletionsPerSecond() {
+        return DiscardBuildPublisher.intToString(deletionsPerSecond);
+    }
+
+    @DataBoundSetter
+    public void setDeletionsPerSecond(String deletionsPerSecond) {
+        this.deletionsPerSecond = DiscardBuildPublisher.parse(deletionsPerSecond);
+        updateLimiter();
+    }
+
+    public String getDeletedMegabytesPerSecond() {
+        return DiscardBuildPublisher.intToString(deletedMegabytesPerSecond);
+    }
+
+    @DataBoundSetter
+    public void setDeletedMegabytesPerSecond(String deletedMegabytesPerSecond) {
+        this.deletedMegabytesPerSecond = DiscardBuildPublisher.parse(deletedMegabytesPerSecond);
+        updateLimiter();
+    }
+
+    public String getMaxThrottle() {
+        return DiscardBuildPublisher.intToString(maxThrottle);
+    }
+
+    @DataBoundSetter
+    public void setMaxThrottle(String maxThrottle) {
+        this.maxThrottle = DiscardBuildPublisher.parse(maxThrottle);
+        updateLimiter();
+    }
+
+    public boolean isMoveToTrash() {
+        return moveToTrash;
+    }
+
+    @DataBoundSetter
+    public void setMoveToTrash(boolean moveToTrash) {
+        this.moveToTrash = moveToTrash;
+        save();
+    }
+
+    public String getMaxTrashSize() {
+        return DiscardBuildPublisher.intToString(maxTrashSize);
+    }
+
+    @DataBoundSetter
+    public void setMaxTrashSize(String maxTrashSize) {
+        this.maxTrashSize = DiscardBuildPublisher.parse(maxTrashSize);
+        if (trash != null) trash.configure(megabytes(this.maxTrashSize));
+        save();
+    }
+
+    private void updateLimiter() {
+        if (limiter != null) { // not yet while loading
+            limiter.configure(deletionsPerSecond, megabytes(deletedMegabytesPerSecond), maxThrottle());
+        }
+        save();
+    }
+
+    private static long megabytes(int megabytes) {
+        return megabytes == -1 ? -1 : megabytes * 1024L * 1024L;
+    }
+
+    DeletionRateLimiter limiter() {
+        return limiter;
+    }
+
+    /**
+     * @return the trash, whether builds are moved to it or not
+     */
+    BuildTrash trash() {
+        return trash;
+    }
+
+    private long maxThrottle() {
+        return maxThrottle == -1 ? -1 : TimeUnit.SECONDS.toNanos(maxThrottle);
+    }
+
+    int concurrency() {
+        return concurrency;
+    }
+
+    int timeBudget() {
+        return timeBudget;
+    }
+
+    /**
+     * @return the parsed schedule, or {@code null} if the sweeper is disabled
+     */
+    CronTabList cronTabs() {
+        if (schedule == null) return null;
+        try {
+            return CronTabList.create(schedule, Hash.from(DiscardSweeper.class.getName()));
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Invalid schedule " + schedule, e);
+            return null;
+        }
+    }
+
+    @POST
+    public FormValidation doCheckSchedule(@QueryParameter String value) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        if (Util.fixEmptyAndTrim(value) == null) return FormValidation.ok();
+        try {
+            CronTabList.create(value, Hash.from(DiscardSweeper.class.getName()));
+            return FormValidation.ok();
+        } catch (IllegalArgumentException e) {
+            return FormValidation.error(e.getMessage());
+        }
+    }
+}
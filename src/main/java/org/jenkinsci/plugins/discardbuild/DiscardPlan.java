@@ -0,0 +1,137 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Ordered set of builds selected for discarding by a single {@link RetentionEvaluator} run,
+ * together with the rule which selected each of them.
+ */
+final class DiscardPlan implements Iterable<DiscardPlan.Entry> {
+
+    /**
+     * What is done to a build of the plan.
+     */
+    enum Mode {
+        DELETE,
+        /**
+         * Only the log and artifacts are deleted.
+         */
+        STRIP,
+        /**
+         * The log is compacted by the {@link LogCompactor}.
+         */
+        COMPACT_LOG
+    }
+
+    /**
+     * A build to discard.
+     */
+    static final class Entry {
+        private final BuildRecord record;
+        private final String rule;
+        private final String reason;
+        private final Mode mode;
+
+        Entry(BuildRecord record, String rule, String reason, Mode mode) {
+            this.record = record;
+            this.rule = rule;
+            this.reason = reason;
+            this.mode = mode;
+        }
+
+        int getNumber() {
+            return record.getNumber();
+        }
+
+        BuildRecord getRecord() {
+            return record;
+        }
+
+        /**
+         * Loads the build to discard.
+         *
+         * @return the build, or {@code null} if it no longer exists
+         */
+        Run<?, ?> getRun() {
+            return record.getRun();
+        }
+
+        /**
+         * @return name of the publisher field which selected the build, e.g. {@code daysToKeep}
+         */
+        String getRule() {
+            return rule;
+        }
+
+        String getReason() {
+            return reason;
+        }
+
+        Mode getMode() {
+            return mode;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final RetentionStats stats = new RetentionStats();
+    private boolean truncated;
+
+    void add(BuildRecord record, String rule, String reason) {
+        add(record, rule, reason, Mode.DELETE);
+    }
+
+    void add(BuildRecord record, String rule, String reason, Mode mode) {
+        entries.add(new Entry(record, rule, reason, mode));
+    }
+
+    /**
+     * Puts the builds back in order, newest first, after some were added out of order.
+     */
+    void sort() {
+        entries.sort(Comparator.comparingInt(Entry::getNumber).reversed());
+    }
+
+    /**
+     * Records that the evaluation did not decide on every build, so that the plan may miss some.
+     */
+    void truncate() {
+        truncated = true;
+    }
+
+    /**
+     * @return true if the evaluation ran out of time, was interrupted or failed to read logs before deciding on
+     *     every build
+     */
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * @return statistics of the evaluation which produced the plan, and of its deletion
+     */
+    RetentionStats getStats() {
+        return stats;
+    }
+
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    @Override
+    public Iterator<Entry> iterator() {
+        return getEntries().iterator();
+    }
+}
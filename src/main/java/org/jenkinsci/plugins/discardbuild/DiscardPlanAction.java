@@ -0,0 +1,211 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.util.LogTaskListener;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.TransientActionFactory;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Dry run of the {@link DiscardBuildPublisher} configured on a job: the builds it would discard, the rule
+ * selecting each of them and the disk space deleting them would reclaim. Nothing is deleted. Since it may read the
+ * whole history and scan logs, it requires the permission to configure the job, and the plan of a job is reused
+ * for {@link #TTL} milliseconds.
+ *
+ * <p>The plan is available from {@code /job/<name>/discard-plan/api/json}, and from the
+ * {@link DiscardPlanCommand} CLI command. It is only exported with the job from a depth of 2, so that listing jobs
+ * does not compute their plans.
+ */
+@ExportedBean
+public final class DiscardPlanAction implements Action {
+    private static final Logger LOGGER = Logger.getLogger(DiscardPlanAction.class.getName());
+
+    /**
+     * Milliseconds a plan is reused for.
+     */
+    static final long TTL = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Latest dry run of each job.
+     */
+    private static final Map<Job<?, ?>, DiscardPlanAction> PLANS = new WeakHashMap<Job<?, ?>, DiscardPlanAction>();
+
+    private final Job<?, ?> job;
+    private final DiscardBuildPublisher publisher;
+    private List<PlannedBuild> builds;
+    private boolean truncated;
+    private long computedAt;
+
+    DiscardPlanAction(Job<?, ?> job, DiscardBuildPublisher publisher) {
+        this.job = job;
+        this.publisher = publisher;
+    }
+
+    /**
+     * @return the dry run of the publisher configured on the project, or {@code null} if there is none
+     */
+    static DiscardPlanAction of(AbstractProject<?, ?> project) {
+        DiscardBuildPublisher publisher = project.getPublishersList().get(DiscardBuildPublisher.class);
+        if (publisher == null) return null;
+        synchronized (PLANS) {
+            DiscardPlanAction action = PLANS.get(project);
+            if (action == null || action.publisher != publisher || action.isExpired()) {
+                action = new DiscardPlanAction(project, publisher);
+                PLANS.put(project, action);
+            }
+            return action;
+        }
+    }
+
+    private synchronized boolean isExpired() {
+        return builds != null && System.currentTimeMillis() - computedAt > TTL;
+    }
+
+    /**
+     * @return builds which would be discarded, newest first
+     */
+    @Exported(visibility = 3)
+    public synchronized List<PlannedBuild> getBuilds() {
+        job.checkPermission(Item.CONFIGURE);
+        if (builds == null) {
+            DiscardPlan plan = publisher.plan(job, new LogTaskListener(LOGGER, Level.FINE));
+            builds = new ArrayList<PlannedBuild>();
+            for (DiscardPlan.Entry entry : plan) {
+                builds.add(new PlannedBuild(entry));
+            }
+            truncated = plan.isTruncated();
+            computedAt = System.currentTimeMillis();
+        }
+        return builds;
+    }
+
+    /**
+     * @return true if the evaluation did not decide on every build, for instance because its time budget ran
+     *     out, so that more builds may be discarded than planned
+     */
+    @Exported(visibility = 3)
+    public synchronized boolean isTruncated() {
+        getBuilds();
+        return truncated;
+    }
+
+    /**
+     * @return estimated bytes discarding the builds whose size is recorded would reclaim
+     */
+    @Exported(visibility = 3)
+    public long getReclaimedBytes() {
+        long total = 0;
+        for (PlannedBuild build : getBuilds()) {
+            if (build.getReclaimedBytes() != -1) total += build.getReclaimedBytes();
+        }
+        return total;
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return "discard-plan";
+    }
+
+    /**
+     * A build which would be discarded.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class PlannedBuild {
+        private final int number;
+        private final String rule;
+        private final String reason;
+        private final long reclaimedBytes;
+        private final String mode;
+
+        PlannedBuild(DiscardPlan.Entry entry) {
+            this.number = entry.getNumber();
+            this.rule = entry.getRule();
+            this.reason = entry.getReason();
+            this.mode = entry.getMode().name();
+            // measuring each build would walk its directory
+            this.reclaimedBytes = entry.getRecord().getRecordedDiskUsage();
+        }
+
+        @Exported
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * @return name of the publisher field which selected the build, e.g. {@code daysToKeep}
+         */
+        @Exported
+        public String getRule() {
+            return rule;
+        }
+
+        @Exported
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * @return bytes discarding the build would reclaim, as recorded in the {@link BuildIndex}, or -1 if the
+         *     size of the build was not measured yet
+         */
+        @Exported
+        public long getReclaimedBytes() {
+            return reclaimedBytes;
+        }
+
+        /**
+         * @return {@code DELETE}, or {@code STRIP} if only the log and artifacts of the build would be deleted, or
+         *     {@code COMPACT_LOG} if its log would be compacted
+         */
+        @Exported
+        public String getMode() {
+            return mode;
+        }
+    }
+
+    /**
+     * Adds the dry run to projects which discard old builds.
+     */
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static final class Factory extends TransientActionFactory<AbstractProject> {
+        @Override
+        public Class<AbstractProject> type() {
+            return AbstractProject.class;
+        }
+
+        @Override
+        public Collection<? extends Action> createFor(AbstractProject target) {
+            DiscardPlanAction action = of(target);
+            return action == null ? Collections.<Action>emptyList() : Collections.singletonList(action);
+        }
+    }
+}
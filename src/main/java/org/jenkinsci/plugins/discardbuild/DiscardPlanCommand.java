@@ -0,0 +1,49 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.args4j.Argument;
+
+/**
+ * Prints the {@link DiscardPlanAction dry run} of a project as JSON, in the same shape as its REST API.
+ */
+@Extension
+public class DiscardPlanCommand extends CLICommand {
+
+    @Argument(metaVar = "JOB", usage = "Name of the job", required = true)
+    public AbstractProject<?, ?> job;
+
+    @Override
+    public String getShortDescription() {
+        return Messages.DiscardPlanCommand_shortDescription();
+    }
+
+    @Override
+    protected int run() throws Exception {
+        job.checkPermission(Item.CONFIGURE);
+        DiscardPlanAction action = DiscardPlanAction.of(job);
+        if (action == null) {
+            throw new IllegalArgumentException(job.getFullDisplayName() + " does not discard old builds");
+        }
+
+        JSONArray builds = new JSONArray();
+        for (DiscardPlanAction.PlannedBuild build : action.getBuilds()) {
+            builds.add(new JSONObject()
+                    .element("number", build.getNumber())
+                    .element("rule", build.getRule())
+                    .element("reason", build.getReason())
+                    .element("reclaimedBytes", build.getReclaimedBytes())
+                    .element("mode", build.getMode()));
+        }
+        stdout.println(new JSONObject()
+                .element("builds", builds)
+                .element("reclaimedBytes", action.getReclaimedBytes())
+                .element("truncated", action.isTruncated())
+                .toString(2));
+        return 0;
+    }
+}
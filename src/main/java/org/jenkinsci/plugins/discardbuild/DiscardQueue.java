@@ -0,0 +1,170 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.init.Terminator;
+import hudson.model.Api;
+import hudson.model.Job;
+import hudson.model.RootAction;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Controller-side queue of discard requests, used by {@link DiscardBuildPublisher} when it is configured to
+ * discard in the background. Requests are drained by a single worker thread; a job which is requested again
+ * while its previous request is still waiting is only evaluated once. The worker is stopped when Jenkins shuts
+ * down.
+ *
+ * <p>Pending requests are kept in memory only; the next build of the job queues them again after a restart.
+ * The queue depth and lag are available from {@code /discard-old-build/api/json}.
+ */
+@Extension
+@ExportedBean
+public final class DiscardQueue implements RootAction {
+    private static final Logger LOGGER = Logger.getLogger(DiscardQueue.class.getName());
+
+    /**
+     * Waiting requests by job full name.
+     */
+    private final ConcurrentMap<String, Request> pending = new ConcurrentHashMap<String, Request>();
+
+    private final Executor executor;
+
+    private volatile long lastLag;
+
+    public DiscardQueue() {
+        this(Executors.newSingleThreadExecutor(
+                new NamingThreadFactory(new DaemonThreadFactory(), "DiscardOldBuild.DiscardQueue")));
+    }
+
+    DiscardQueue(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Stops the worker, dropping the waiting requests.
+     */
+    @Terminator
+    public void shutdown() {
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdownNow();
+        }
+        pending.clear();
+    }
+
+    static DiscardQueue get() {
+        return ExtensionList.lookupSingleton(DiscardQueue.class);
+    }
+
+    /**
+     * Queues the discard of old builds of a job, unless one is already waiting.
+     *
+     * @param job       job whose old builds are to be discarded
+     * @param publisher rules to apply; replaces those of a request already waiting for the job
+     */
+    void schedule(Job<?, ?> job, DiscardBuildPublisher publisher) {
+        String name = job.getFullName();
+        Request request = new Request(job, publisher, System.currentTimeMillis());
+        if (pending.merge(name, request, Request::coalesce) == request) {
+            try {
+                executor.execute(() -> process(name));
+            } catch (RejectedExecutionException e) {
+                pending.remove(name, request);
+                LOGGER.log(Level.FINE, "Not discarding old builds of " + name + ", shutting down", e);
+            }
+        }
+    }
+
+    private void process(String name) {
+        Request request = pending.remove(name);
+        if (request == null) return;
+        lastLag = System.currentTimeMillis() - request.queuedAt;
+
+        TaskListener listener = new LogTaskListener(LOGGER, Level.FINE);
+        try {
+            request.publisher.discard(request.job, listener);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to discard old builds of " + name, e);
+        }
+    }
+
+    /**
+     * @return number of jobs waiting to be processed
+     */
+    @Exported
+    public int getDepth() {
+        return pending.size();
+    }
+
+    /**
+     * @return milliseconds the oldest waiting request has been queued for, or 0 if none is waiting
+     */
+    @Exported
+    public long getLag() {
+        long oldest = Long.MAX_VALUE;
+        for (Request request : pending.values()) {
+            oldest = Math.min(oldest, request.queuedAt);
+        }
+        return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    /**
+     * @return milliseconds the most recently processed request had been queued for
+     */
+    @Exported
+    public long getLastLag() {
+        return lastLag;
+    }
+
+    public Api getApi() {
+        Jenkins.get().checkPermission(Jenkins.SYSTEM_READ);
+        return new Api(this);
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return "discard-old-build";
+    }
+
+    private static final class Request {
+        private final Job<?, ?> job;
+        private final DiscardBuildPublisher publisher;
+        private final long queuedAt;
+
+        Request(Job<?, ?> job, DiscardBuildPublisher publisher, long queuedAt) {
+            this.job = job;
+            this.publisher = publisher;
+            this.queuedAt = queuedAt;
+        }
+
+        /**
+         * Merges a newer request into this waiting one, keeping the time this one was queued.
+         */
+        Request coalesce(Request newer) {
+            return new Request(newer.job, newer.publisher, queuedAt);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.scheduler.CronTabList;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+
+/**
+ * Applies the conditions of every job with a {@link DiscardBuildPublisher} on the schedule of the
+ * {@link DiscardOldBuildConfiguration}, so that jobs which stopped building are cleaned too, and deletion can
+ * be moved to a quiet time of the day.
+ *
+ * <p>Jobs are swept by up to the configured number of threads, in order of their full name. Once the time
+ * budget is spent no more jobs are started; the next sweep starts with the first job left out.
+ * The log of the last sweep is kept with the logs of the other periodic tasks, with the output of each job
+ * written in one piece once the job is swept.
+ */
+@Extension
+public final class DiscardSweeper extends AsyncPeriodicWork {
+
+    /**
+     * Time of the last sweep, so that a scheduled time is only swept once.
+     */
+    private long lastSweep = System.currentTimeMillis();
+    /**
+     * Full name of the first job left out by the last sweep, or {@code null}.
+     */
+    private String nextJob;
+
+    public DiscardSweeper() {
+        super("Discard old builds sweeper");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws InterruptedException {
+        DiscardOldBuildConfiguration config = DiscardOldBuildConfiguration.get();
+        CronTabList schedule = config.cronTabs();
+        if (schedule == null) return;
+        Calendar due = schedule.previous();
+        if (due == null || due.getTimeInMillis() <= lastSweep) return;
+        lastSweep = System.currentTimeMillis();
+
+        @SuppressWarnings("rawtypes")
+        List<AbstractProject> projects = Jenkins.get().getAllItems(AbstractProject.class);
+        long budget = config.timeBudget() == -1 ? -1 : TimeUnit.MINUTES.toNanos(config.timeBudget());
+        sweep(projects, config.concurrency(), budget, listener);
+    }
+
+    /**
+     * @param projects    all projects; those without a {@link DiscardBuildPublisher} are ignored
+     * @param concurrency number of projects swept at the same time
+     * @param budget      nanoseconds after which no more projects are started, or -1
+     */
+    @SuppressWarnings("rawtypes")
+    void sweep(List<AbstractProject> projects, int concurrency, long budget, TaskListener listener)
+            throws InterruptedException {
+        List<AbstractProject> targets = new ArrayList<AbstractProject>();
+        for (AbstractProject project : projects) {
+            if (project.getPublishersList().get(DiscardBuildPublisher.class) != null) targets.add(project);
+        }
+        if (targets.isEmpty()) return;
+        targets.sort(Comparator.comparing(AbstractProject::getFullName));
+        // resume where the last sweep ran out of time
+        int first = 0;
+        while (nextJob != null
+                && first < targets.size()
+                && targets.get(first).getFullName().compareTo(nextJob) < 0) {
+            first++;
+        }
+        if (first > 0) {
+            List<AbstractProject> skipped = new ArrayList<AbstractProject>(targets.subList(0, first));
+            targets.subList(0, first).clear();
+            targets.addAll(skipped);
+        }
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(concurrency, targets.size()),
+                new NamingThreadFactory(new DaemonThreadFactory(), "DiscardOldBuild.DiscardSweeper"));
+        try {
+            List<Future<Boolean>> sweeps = new ArrayList<Future<Boolean>>(targets.size());
+            for (AbstractProject project : targets) {
+                sweeps.add(pool.submit(() -> {
+                    if (budget != -1 && System.nanoTime() - start > budget) return false;
+                    DiscardBuildPublisher publisher =
+                            (DiscardBuildPublisher) project.getPublishersList().get(DiscardBuildPublisher.class);
+                    // each job logs to its own buffer, copied whole so that jobs swept together do not interleave
+                    ByteArrayOutputStream log = new ByteArrayOutputStream();
+                    try {
+                        publisher.apply(project, new StreamTaskListener(log, StandardCharsets.UTF_8));
+                    } finally {
+                        byte[] bytes = log.toByteArray();
+                        synchronized (listener) {
+                            listener.getLogger().println("Discarding old builds of " + project.getFullName());
+                            listener.getLogger().write(bytes, 0, bytes.length);
+                        }
+                    }
+                    return true;
+                }));
+            }
+
+            nextJob = null;
+            int swept = 0;
+            for (int i = 0; i < sweeps.size(); i++) {
+                boolean started;
+                try {
+                    started = sweeps.get(i).get();
+                } catch (ExecutionException e) {
+                    synchronized (listener) {
+                        e.getCause()
+                                .printStackTrace(listener.error(
+                                        "Failed to discard old builds of " + targets.get(i).getFullName()));
+                    }
+                    started = true;
+                }
+                if (started) {
+                    swept++;
+                } else if (nextJob == null) {
+                    nextJob = targets.get(i).getFullName();
+                }
+            }
+            listener.getLogger()
+                    .printf(
+                            "Swept %d jobs in %d ms, %d left for the next sweep%n",
+                            swept,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                            targets.size() - swept);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compacts the log of a build which is too big, instead of discarding the build. The log is either gzipped, which
+ * Jenkins reads as is, or cut down to its start and end with a line telling how much was removed in between.
+ *
+ * <p>Logs are streamed through a small buffer into a temporary file in the build directory, which then replaces
+ * the log in a single rename, so a log is never left half written. A gzipped log which is cut is inflated into
+ * another temporary file first, so that its end can be read from its known length.
+ */
+final class LogCompactor {
+
+    /**
+     * Upper bound of the length of the line replacing the middle of a log.
+     */
+    static final int MAX_MARKER_LENGTH = 64;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final long head;
+    private final long tail;
+
+    /**
+     * @param head bytes kept at the start of logs, or -1
+     * @param tail bytes kept at the end of logs, or -1; logs are gzipped instead if both are -1
+     */
+    LogCompactor(long head, long tail) {
+        this.head = head;
+        this.tail = tail;
+    }
+
+    private boolean isGzipping() {
+        return head == -1 && tail == -1;
+    }
+
+    /**
+     * @return true if compacting the log of the build would not reclaim anything
+     */
+    boolean isCompacted(BuildRecord r) {
+        if (isGzipping()) return LogScanner.isCompressed(r.getLogFile());
+        return r.getLogSize() <= Math.max(0, head) + Math.max(0, tail) + MAX_MARKER_LENGTH;
+    }
+
+    /**
+     * Compacts a log, unless it already is.
+     *
+     * @param log log file of a completed build
+     * @return bytes reclaimed
+     */
+    long compact(File log) throws IOException {
+        long before = log.length();
+        File dir = log.getParentFile();
+        boolean compressed = LogScanner.isCompressed(log);
+        if (isGzipping()) {
+            if (compressed) return 0;
+            File gz = new File(dir, "log.gz");
+            replace(gz, true, out -> Files.copy(log.toPath(), out));
+            Files.delete(log.toPath());
+            return before - gz.length();
+        }
+
+        long keepHead = Math.max(0, head);
+        long keepTail = Math.max(0, tail);
+        File plain = new File(dir, "log");
+        // the size recorded in a gzip trailer is only modulo 4 GiB, and the end has to be read from a known offset
+        File inflated = compressed ? new File(dir, "log.inflated") : null;
+        try {
+            File source = log;
+            if (compressed) {
+                try (InputStream in = new GZIPInputStream(Files.newInputStream(log.toPath()), BUFFER_SIZE)) {
+                    Files.copy(in, inflated.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                source = inflated;
+            }
+            if (source.length() <= keepHead + keepTail + MAX_MARKER_LENGTH) return 0;
+            File from = source;
+            replace(plain, false, out -> cut(from, out, keepHead, keepTail));
+        } finally {
+            if (inflated != null) Files.deleteIfExists(inflated.toPath());
+        }
+        if (compressed) Files.delete(log.toPath());
+        return before - plain.length();
+    }
+
+    /**
+     * Content of a compacted log.
+     */
+    private interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes the content to a temporary file, which then replaces the target.
+     */
+    private static void replace(File target, boolean gzip, Content content) throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        try {
+            try (OutputStream raw = Files.newOutputStream(tmp.toPath());
+                    OutputStream out = gzip ? new GZIPOutputStream(raw, BUFFER_SIZE) : raw) {
+                content.writeTo(out);
+            }
+            Files.move(
+                    tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Copies the start and the end of a log with a line telling how much was removed in between. Both cuts are
+     * moved inwards to the nearest line boundary within {@link #BUFFER_SIZE} bytes, or else to the nearest UTF-8
+     * character boundary.
+     *
+     * @param log  uncompressed log, longer than the bytes kept and the line
+     * @param head bytes kept at the start, at most
+     * @param tail bytes kept at the end, at most
+     */
+    private static void cut(File log, OutputStream out, long head, long tail) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            // the start, up to the last line boundary within its last bytes
+            long direct = Math.max(0, head - BUFFER_SIZE);
+            copy(channel, out, buffer, 0, direct);
+            int window = read(channel, buffer, direct, (int) (head - direct));
+            int headCut = window;
+            if (window > 0) {
+                int newline = lastIndexOf(buffer, (byte) '\n', window);
+                headCut = newline != -1 ? newline + 1 : characterEnd(buffer, window);
+            }
+            out.write(buffer, 0, headCut);
+            long kept = direct + headCut;
+
+            // the end, from the first line boundary within its first bytes
+            long tailStart = size - tail;
+            int tailCut = 0;
+            if (read(channel, buffer, tailStart - 1, 1) == 1 && buffer[0] != '\n') {
+                int length = read(channel, buffer, tailStart, (int) Math.min(tail, BUFFER_SIZE));
+                tailCut = -1;
+                for (int i = 0; i < length && tailCut == -1; i++) {
+                    if (buffer[i] == '\n') tailCut = i + 1;
+                }
+                if (tailCut == -1) {
+                    tailCut = 0;
+                    while (tailCut < length && isContinuation(buffer[tailCut])) tailCut++;
+                }
+            }
+            kept += tail - tailCut;
+
+            out.write(("\n[... " + (size - kept) + " bytes removed ...]\n").getBytes(StandardCharsets.UTF_8));
+            copy(channel, out, buffer, tailStart + tailCut, tail - tailCut);
+        }
+    }
+
+    /**
+     * Reads bytes at a position, as many as there are up to the given length.
+     *
+     * @return bytes read
+     */
+    private static int read(FileChannel channel, byte[] buffer, long position, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, length);
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, position + bytes.position()) == -1) break;
+        }
+        return bytes.position();
+    }
+
+    private static void copy(FileChannel channel, OutputStream out, byte[] buffer, long position, long length)
+            throws IOException {
+        while (length > 0) {
+            int n = read(channel, buffer, position, (int) Math.min(buffer.length, length));
+            if (n == 0) return;
+            out.write(buffer, 0, n);
+            position += n;
+            length -= n;
+        }
+    }
+
+    private static int lastIndexOf(byte[] bytes, byte b, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (bytes[i] == b) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the length of the bytes up to the end of the last complete UTF-8 sequence among them
+     */
+    private static int characterEnd(byte[] bytes, int length) {
+        int lead = length - 1;
+        while (lead > 0 && isContinuation(bytes[lead])) lead--;
+        int b = bytes[lead] & 0xff;
+        int sequence = b < 0x80 ? 1 : b >= 0xf0 ? 4 : b >= 0xe0 ? 3 : b >= 0xc0 ? 2 : 1;
+        return lead + sequence <= length ? length : lead;
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xc0) == 0x80;
+    }
+
+    /**
+     * @return the settings, identifying them in digests
+     */
+    @Override
+    public String toString() {
+        return "LogCompactor[" + head + "," + tail + "]";
+    }
+}
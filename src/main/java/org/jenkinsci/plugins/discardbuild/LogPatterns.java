@@ -0,0 +1,318 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.regex.Pattern;
+
+/**
+ * Labelled regular expressions searched for together in build logs, in a single pass over each line.
+ *
+ * <p>Most patterns contain a literal which every match has to contain, such as {@code OutOfMemoryError} in
+ * {@code java\.lang\.OutOfMemoryError: .*}. The literals of all the patterns are looked for at once with an
+ * Aho-Corasick automaton, and a pattern is only run on the lines containing its literal. Patterns without such a
+ * literal are run on every line.
+ *
+ * <p>Instances are immutable.
+ */
+final class LogPatterns {
+
+    private final String[] labels;
+    private final Pattern[] patterns;
+    /**
+     * Whether each pattern is only run on lines containing its literal.
+     */
+    private final boolean[] prefiltered;
+
+    /**
+     * Class of each character for the automaton, 0 for characters of no literal; {@code null} without literals.
+     */
+    private final char[] classes;
+
+    private final int alphabetSize;
+    /**
+     * Next state, indexed by state times {@link #alphabetSize} plus character class.
+     */
+    private final int[] transitions;
+    /**
+     * Patterns whose literal ends at each state.
+     */
+    private final int[][] outputs;
+
+    /**
+     * Letters which, escaped, stand alone for a class of characters, an anchor or a control character. Any other
+     * escaped letter or digit is followed by arguments, such as {@code \\u00e9} or {@code \\p{Lu}}.
+     */
+    private static final String SIMPLE_ESCAPES = "dDsSwWhHvVbBAGzZRXtnrfae";
+
+    private LogPatterns(List<String> labels, List<Pattern> patterns) {
+        this.labels = labels.toArray(new String[0]);
+        this.patterns = patterns.toArray(new Pattern[0]);
+        this.prefiltered = new boolean[this.patterns.length];
+
+        String[] literals = new String[this.patterns.length];
+        Map<Character, Character> alphabet = new HashMap<Character, Character>();
+        for (int i = 0; i < literals.length; i++) {
+            literals[i] = requiredLiteral(this.patterns[i]);
+            if (literals[i] == null) continue;
+            prefiltered[i] = true;
+            for (char c : literals[i].toCharArray()) {
+                if (!alphabet.containsKey(c)) alphabet.put(c, (char) (alphabet.size() + 1));
+            }
+        }
+        if (alphabet.isEmpty()) {
+            this.classes = null;
+            this.alphabetSize = 0;
+            this.transitions = null;
+            this.outputs = null;
+            return;
+        }
+        this.classes = new char[Character.MAX_VALUE + 1];
+        for (Map.Entry<Character, Character> e : alphabet.entrySet()) {
+            classes[e.getKey()] = e.getValue();
+        }
+        this.alphabetSize = alphabet.size() + 1;
+
+        // trie of the literals
+        List<int[]> children = new ArrayList<int[]>();
+        List<int[]> ends = new ArrayList<int[]>();
+        children.add(newState());
+        ends.add(new int[0]);
+        for (int i = 0; i < literals.length; i++) {
+            if (literals[i] == null) continue;
+            int state = 0;
+            for (char c : literals[i].toCharArray()) {
+                int next = children.get(state)[classes[c]];
+                if (next == 0) {
+                    next = children.size();
+                    children.get(state)[classes[c]] = next;
+                    children.add(newState());
+                    ends.add(new int[0]);
+                }
+                state = next;
+            }
+            int[] end = ends.get(state);
+            end = Arrays.copyOf(end, end.length + 1);
+            end[end.length - 1] = i;
+            ends.set(state, end);
+        }
+
+        // fold the failure links into a complete transition table, breadth first
+        int states = children.size();
+        this.transitions = new int[states * alphabetSize];
+        this.outputs = new int[states][];
+        int[] failure = new int[states];
+        outputs[0] = ends.get(0);
+        Queue<Integer> queue = new ArrayDeque<Integer>();
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            int state = queue.remove();
+            for (int c = 0; c < alphabetSize; c++) {
+                int child = children.get(state)[c];
+                int fallback = state == 0 ? 0 : transitions[failure[state] * alphabetSize + c];
+                if (child == 0) {
+                    transitions[state * alphabetSize + c] = fallback;
+                    continue;
+                }
+                transitions[state * alphabetSize + c] = child;
+                failure[child] = fallback;
+                int[] own = ends.get(child);
+                int[] inherited = outputs[fallback];
+                int[] out = Arrays.copyOf(own, own.length + inherited.length);
+                System.arraycopy(inherited, 0, out, own.length, inherited.length);
+                outputs[child] = out;
+                queue.add(child);
+            }
+        }
+    }
+
+    private int[] newState() {
+        return new int[alphabetSize];
+    }
+
+    /**
+     * @return a single unlabelled pattern
+     */
+    static LogPatterns of(Pattern pattern) {
+        List<String> labels = new ArrayList<String>();
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        labels.add(null);
+        patterns.add(pattern);
+        return new LogPatterns(labels, patterns);
+    }
+
+    /**
+     * @param regexp   unlabelled regular expression, or empty
+     * @param labelled lines of {@code label=regular expression}; blank lines and lines starting with {@code #} are
+     *     ignored, and a line without {@code =} is labelled with its expression
+     * @throws java.util.regex.PatternSyntaxException if an expression is invalid
+     */
+    static LogPatterns parse(String regexp, String labelled) {
+        List<String> labels = new ArrayList<String>();
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        if (regexp != null && !regexp.isEmpty()) {
+            labels.add(null);
+            patterns.add(Pattern.compile(regexp));
+        }
+        if (labelled != null) {
+            for (String line : labelled.split("\\r?\\n")) {
+                if (line.trim().isEmpty() || line.startsWith("#")) continue;
+                int eq = line.indexOf('=');
+                labels.add(eq == -1 ? line : line.substring(0, eq).trim());
+                patterns.add(Pattern.compile(eq == -1 ? line : line.substring(eq + 1)));
+            }
+        }
+        return new LogPatterns(labels, patterns);
+    }
+
+    int size() {
+        return patterns.length;
+    }
+
+    boolean isEmpty() {
+        return patterns.length == 0;
+    }
+
+    /**
+     * @return label of a pattern, or {@code null} for the unlabelled one
+     */
+    String getLabel(int index) {
+        return labels[index];
+    }
+
+    Pattern getPattern(int index) {
+        return patterns[index];
+    }
+
+    /**
+     * @return true if the pattern only needs to be run on lines marked by {@link #findLiterals}
+     */
+    boolean isPrefiltered(int index) {
+        return prefiltered[index];
+    }
+
+    /**
+     * Marks the patterns whose literal occurs in a line.
+     *
+     * @param found set to {@code mark} at the index of each pattern whose literal occurs
+     */
+    void findLiterals(char[] a, int start, int end, int[] found, int mark) {
+        if (classes == null) return;
+        int state = 0;
+        for (int i = start; i < end; i++) {
+            state = transitions[state * alphabetSize + classes[a[i]]];
+            for (int pattern : outputs[state]) {
+                found[pattern] = mark;
+            }
+        }
+    }
+
+    /**
+     * Finds the longest run of plain characters outside of groups and character classes, which are not made
+     * optional by a quantifier. Expressions with an alternation at the top level, inline flags, quoting, or
+     * escapes followed by arguments, such as {@code \\x41}, {@code \\p{Lu}} or back references, have none.
+     *
+     * @return a literal every match of the pattern contains, or {@code null}
+     */
+    static String requiredLiteral(Pattern pattern) {
+        if (pattern.flags() != 0) return null;
+        String regex = pattern.pattern();
+        if (regex.contains("(?") || regex.contains("\\Q")) return null;
+
+        String best = "";
+        StringBuilder run = new StringBuilder();
+        boolean lastLiteral = false;
+        int depth = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            boolean literal = false;
+            switch (c) {
+                case '\\':
+                    if (++i == regex.length()) return null;
+                    c = regex.charAt(i);
+                    // escaped punctuation is literal, the arguments of other escapes would pass for literals
+                    if (Character.isLetterOrDigit(c) && SIMPLE_ESCAPES.indexOf(c) == -1) return null;
+                    literal = depth == 0 && !Character.isLetterOrDigit(c);
+                    break;
+                case '[':
+                    i = endOfClass(regex, i);
+                    if (i == -1) return null;
+                    break;
+                case '(':
+                    depth++;
+                    break;
+                case ')':
+                    depth--;
+                    break;
+                case '|':
+                    if (depth == 0) return null;
+                    break;
+                case '?':
+                case '*':
+                case '{':
+                    // the previous character may not be there
+                    if (lastLiteral) run.setLength(run.length() - 1);
+                    if (c == '{') {
+                        i = regex.indexOf('}', i);
+                        if (i == -1) return null;
+                    }
+                    break;
+                case '+':
+                    // the previous character is there at least once, but may be repeated
+                case '.':
+                case '^':
+                case '$':
+                    break;
+                default:
+                    literal = depth == 0;
+                    break;
+            }
+            if (literal) {
+                run.append(c);
+            } else {
+                if (run.length() > best.length()) best = run.toString();
+                run.setLength(0);
+            }
+            lastLiteral = literal;
+        }
+        if (run.length() > best.length()) best = run.toString();
+        return best.isEmpty() ? null : best;
+    }
+
+    /**
+     * @return index of the {@code ]} closing the character class opened at {@code start}, or -1
+     */
+    private static int endOfClass(String regex, int start) {
+        int depth = 0;
+        for (int i = start; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                depth++;
+                // a ] right after the opening bracket is literal
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') i++;
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') i++;
+            } else if (c == ']' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the patterns and their labels, identifying them in digests
+     */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < patterns.length; i++) {
+            s.append(labels[i]).append('=').append(patterns[i].pattern()).append('\n');
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,301 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Searches build logs for lines matching one of a set of {@link LogPatterns}.
+ *
+ * <p>Logs are streamed through fixed size buffers and decoded with the charset of the build, so memory use does not
+ * depend on the size of the log. Lines are matched in place without creating a {@code String} for each of them,
+ * and scanning stops at the first match. Each line is only matched against the patterns
+ * whose literal it contains. Lines longer than {@link #MAX_LINE_LENGTH} characters are matched in
+ * chunks of that length, so a match spanning two chunks of such a line is not found.
+ *
+ * <p>Logs compressed by log compression plugins, named {@code log.gz}, are inflated as they are read, so scanning
+ * stops as early for them as for plain logs.
+ *
+ * <p>The search may be limited to the first and the last bytes of each log, where failures are usually reported.
+ * The end of a plain log is read directly; a gzipped log has to be inflated up to it, but is only matched from
+ * there. The lines cut by the limits are matched partially.
+ *
+ * <p>Instances reuse their buffers and are not thread safe.
+ */
+final class LogScanner {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Maximum number of characters of a line matched at once.
+     */
+    static final int MAX_LINE_LENGTH = Integer.getInteger(LogScanner.class.getName() + ".maxLineLength", 64 * 1024);
+
+    private final LogPatterns patterns;
+    private final int maxLineLength;
+    private final long head;
+    private final long tail;
+
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final char[] line;
+    private int lineLength;
+    private long bytesRead;
+
+    /**
+     * Matchers of each pattern over {@link #chars} and over {@link #line}.
+     */
+    private final Matcher[] matchers;
+    private final Matcher[] lineMatchers;
+    /**
+     * Patterns whose literal was found in the current line are set to {@link #mark}.
+     */
+    private final int[] found;
+    private int mark;
+    /**
+     * Index of the pattern which matched the last log, or -1.
+     */
+    private int matched;
+
+    LogScanner(Pattern pattern) {
+        this(LogPatterns.of(pattern), MAX_LINE_LENGTH, -1, -1);
+    }
+
+    LogScanner(Pattern pattern, int maxLineLength) {
+        this(LogPatterns.of(pattern), maxLineLength, -1, -1);
+    }
+
+    LogScanner(Pattern pattern, long head, long tail) {
+        this(LogPatterns.of(pattern), MAX_LINE_LENGTH, head, tail);
+    }
+
+    /**
+     * @param head bytes searched at the start of each log, or -1
+     * @param tail bytes searched at the end of each log, or -1; if both are -1 logs are searched entirely
+     */
+    LogScanner(LogPatterns patterns, long head, long tail) {
+        this(patterns, MAX_LINE_LENGTH, head, tail);
+    }
+
+    private LogScanner(LogPatterns patterns, int maxLineLength, long head, long tail) {
+        this.patterns = patterns;
+        this.maxLineLength = maxLineLength;
+        this.line = new char[maxLineLength];
+        this.head = head;
+        this.tail = tail;
+        this.matchers = new Matcher[patterns.size()];
+        this.lineMatchers = new Matcher[patterns.size()];
+        for (int i = 0; i < matchers.length; i++) {
+            matchers[i] = patterns.getPattern(i).matcher(CharBuffer.wrap(chars.array()));
+            lineMatchers[i] = patterns.getPattern(i).matcher(CharBuffer.wrap(line));
+        }
+        this.found = new int[patterns.size()];
+    }
+
+    /**
+     * @param log     log file to search, possibly gzipped
+     * @param charset charset the log was written with
+     * @return true if a line of the log matches
+     * @throws IOException if the log cannot be read
+     */
+    boolean find(File log, Charset charset) throws IOException {
+        return match(log, charset) != -1;
+    }
+
+    /**
+     * @param log     log file to search, possibly gzipped
+     * @param charset charset the log was written with
+     * @return index of the pattern matching the first matching line of the log, or -1
+     * @throws IOException if the log cannot be read
+     */
+    int match(File log, Charset charset) throws IOException {
+        matched = -1;
+        search(log, charset);
+        return matched;
+    }
+
+    private boolean search(File log, Charset charset) throws IOException {
+        boolean whole = this.head == -1 && this.tail == -1;
+        long head = Math.max(this.head, 0);
+        long tail = Math.max(this.tail, 0);
+        if (isCompressed(log)) {
+            long size = whole ? 0 : BuildRecord.logSize(log);
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(log.toPath()), BUFFER_SIZE);
+                    ReadableByteChannel channel = Channels.newChannel(in)) {
+                // searched entirely if there are no limits or they overlap
+                if (head + tail >= size) return scan(channel, charset);
+                if (head > 0 && scan(new BoundedChannel(channel, head), charset)) return true;
+                if (tail == 0) return false;
+                try {
+                    in.skipNBytes(size - tail - head);
+                } catch (EOFException e) {
+                    return false; // the size in the trailer was not that of the whole log
+                }
+                return scan(channel, charset);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+            long size = whole ? 0 : channel.size();
+            if (head + tail >= size) return scan(channel, charset);
+            if (head > 0 && scan(new BoundedChannel(channel, head), charset)) return true;
+            if (tail == 0) return false;
+            channel.position(size - tail);
+            return scan(channel, charset);
+        }
+    }
+
+    static boolean isCompressed(File log) {
+        return log.getName().endsWith(".gz");
+    }
+
+    private boolean scan(ReadableByteChannel channel, Charset charset) throws IOException {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        char[] a = chars.array();
+        boolean skipLF = false;
+        bytes.clear();
+        chars.clear();
+        lineLength = 0;
+
+        boolean eof = false;
+        while (!eof) {
+            int read = channel.read(bytes);
+            eof = read == -1;
+            if (read > 0) bytesRead += read;
+            bytes.flip();
+            decoder.decode(bytes, chars, eof);
+            if (eof) decoder.flush(chars);
+            bytes.compact();
+
+            int limit = chars.position();
+            int start = 0;
+            for (int i = 0; i < limit; i++) {
+                char c = a[i];
+                if (skipLF) {
+                    skipLF = false;
+                    if (c == '\n') {
+                        start = i + 1;
+                        continue;
+                    }
+                }
+                if (c != '\n' && c != '\r') continue;
+                skipLF = c == '\r';
+
+                if (lineLength == 0 && i - start <= maxLineLength) {
+                    // the whole line is in the buffer
+                    if (matches(matchers, a, start, i)) return true;
+                } else if (append(a, start, i) || findInLine()) {
+                    return true;
+                }
+                start = i + 1;
+            }
+            // keep the incomplete last line for the next read
+            if (append(a, start, limit)) return true;
+            chars.clear();
+        }
+        return findInLine();
+    }
+
+    /**
+     * Runs the patterns whose literal occurs in a line, in order, recording the first one which matches.
+     */
+    private boolean matches(Matcher[] matchers, char[] a, int start, int end) {
+        if (++mark == 0) {
+            Arrays.fill(found, 0);
+            mark = 1;
+        }
+        patterns.findLiterals(a, start, end, found, mark);
+        for (int i = 0; i < matchers.length; i++) {
+            if (patterns.isPrefiltered(i) && found[i] != mark) continue;
+            if (matchers[i].region(start, end).find()) {
+                matched = i;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of bytes read by all the scans of this scanner, once uncompressed
+     */
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Appends characters to the current line, matching and clearing it each time it reaches its maximum length.
+     *
+     * @return true if a full chunk of the line matched
+     */
+    private boolean append(char[] a, int from, int to) {
+        while (from < to) {
+            int n = Math.min(to - from, maxLineLength - lineLength);
+            System.arraycopy(a, from, line, lineLength, n);
+            lineLength += n;
+            from += n;
+            if (lineLength == maxLineLength && findInLine()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Matches and clears the current line.
+     */
+    private boolean findInLine() {
+        if (lineLength == 0) return false;
+        boolean result = matches(lineMatchers, line, 0, lineLength);
+        lineLength = 0;
+        return result;
+    }
+
+    /**
+     * Reads up to a number of bytes from a channel, which is left open.
+     */
+    private static final class BoundedChannel implements ReadableByteChannel {
+        private final ReadableByteChannel channel;
+        private long remaining;
+
+        BoundedChannel(ReadableByteChannel channel, long remaining) {
+            this.channel = channel;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (remaining <= 0) return -1;
+            int limit = dst.limit();
+            if (dst.remaining() > remaining) dst.limit(dst.position() + (int) remaining);
+            try {
+                int read = channel.read(dst);
+                if (read > 0) remaining -= read;
+                return read;
+            } finally {
+                dst.limit(limit);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,129 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.util.AtomicFileWriter;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers, per job, which build logs matched which of the regular expressions, so that logs which did not
+ * change are not scanned again by later evaluations.
+ *
+ * <p>Verdicts are stored in a side file in the job directory, valid for a single key made of the pattern and
+ * the scanner settings, and for each build are only trusted while the log keeps the same length and
+ * modification time. Verdicts of builds which were neither looked up nor retained by an evaluation, since the
+ * builds no longer exist, are dropped when it is saved.
+ */
+final class RegexpVerdictCache {
+    private static final Logger LOGGER = Logger.getLogger(RegexpVerdictCache.class.getName());
+
+    static final String FILE_NAME = "discard-old-build-regexp.cache";
+
+    private final File file;
+    private final String key;
+    private final Map<Integer, Verdict> previous;
+    private final Map<Integer, Verdict> current = new TreeMap<Integer, Verdict>();
+    private boolean modified;
+
+    private RegexpVerdictCache(File file, String key, Map<Integer, Verdict> previous) {
+        this.file = file;
+        this.key = key;
+        this.previous = previous;
+    }
+
+    /**
+     * @param dir directory of the job
+     * @param key identifies the pattern and settings the verdicts were computed with
+     * @return the saved verdicts, or an empty cache if there are none for this key
+     */
+    static RegexpVerdictCache load(File dir, String key) {
+        File file = new File(dir, FILE_NAME);
+        Map<Integer, Verdict> verdicts = new HashMap<Integer, Verdict>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            if (key.equals(reader.readLine())) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(" ");
+                    verdicts.put(
+                            Integer.parseInt(fields[0]),
+                            new Verdict(
+                                    Long.parseLong(fields[1]), Long.parseLong(fields[2]), Integer.parseInt(fields[3])));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // nothing cached yet
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Ignoring unreadable " + file, e);
+            verdicts.clear();
+        }
+        return new RegexpVerdictCache(file, key, verdicts);
+    }
+
+    /**
+     * @return index of the pattern the log matched or -1, or {@code null} if it was not scanned in this state before
+     */
+    Integer get(int number, File log) {
+        Verdict verdict = previous.get(number);
+        if (verdict == null || verdict.length != log.length() || verdict.lastModified != log.lastModified()) {
+            return null;
+        }
+        current.put(number, verdict);
+        return verdict.matched;
+    }
+
+    /**
+     * Keeps the verdict of a build which still exists but was not looked up, since its log was not scanned.
+     */
+    void retain(int number) {
+        Verdict verdict = previous.get(number);
+        if (verdict != null) current.put(number, verdict);
+    }
+
+    void put(int number, File log, int matched) {
+        current.put(number, new Verdict(log.length(), log.lastModified(), matched));
+        modified = true;
+    }
+
+    /**
+     * Writes the verdicts looked up, retained or added since the cache was loaded.
+     */
+    void save() throws IOException {
+        if (!modified && current.size() == previous.size()) return;
+        AtomicFileWriter writer = new AtomicFileWriter(file.toPath(), StandardCharsets.UTF_8);
+        try {
+            writer.write(key);
+            writer.write('\n');
+            for (Map.Entry<Integer, Verdict> e : current.entrySet()) {
+                Verdict verdict = e.getValue();
+                writer.write(e.getKey() + " " + verdict.length + " " + verdict.lastModified + " " + verdict.matched
+                        + "\n");
+            }
+            writer.commit();
+        } finally {
+            writer.abort();
+        }
+    }
+
+    private static final class Verdict {
+        private final long length;
+        private final long lastModified;
+        /**
+         * Index of the pattern which matched, or -1.
+         */
+        private final int matched;
+
+        Verdict(long length, long lastModified, int matched) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.matched = matched;
+        }
+    }
+}
@@ -0,0 +1,840 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.Util;
+import hudson.model.Job;
+import hudson.model.PermalinkProjectAction.Permalink;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evaluates the rules of a {@link DiscardBuildPublisher} against a job in a single walk over its build history.
+ *
+ * <p>Rules are applied in the priority order the publisher always used: days, number, interval days,
+ * interval number, status, logfile size and regular expression, followed by the disk usage of the job. Each
+ * build is passed through the rules until one of them selects it, so a build discarded by one rule is not seen
+ * by the rules after it, exactly as if it had already been deleted.
+ *
+ * <p>Builds kept forever are never selected, nor are the builds permalinks point to when
+ * {@code keepLastBuilds} is set.
+ *
+ * <p>With an {@code evaluationTimeBudget}, builds reached once the budget is spent are only passed through the
+ * rules which depend on time or on the other builds; the next evaluation resumes from the first of them.
+ */
+final class RetentionEvaluator {
+
+    /**
+     * Names of the rules, in priority order.
+     */
+    static final List<String> RULE_NAMES = Collections.unmodifiableList(Arrays.asList(
+            "daysToKeep",
+            "numToKeep",
+            "intervalDaysToKeep",
+            "intervalNumToKeep",
+            "resultsToDiscard",
+            "logFileSize",
+            "regexp",
+            "maxDiskUsage"));
+
+    private final DiscardBuildPublisher publisher;
+    private final TaskListener listener;
+    /**
+     * If true, neither the {@link RetentionState} nor the cached verdicts of the regular expressions are written,
+     * since nothing will be deleted. The {@link BuildIndex} only records what the builds are, and is written.
+     */
+    private final boolean dryRun;
+
+    RetentionEvaluator(DiscardBuildPublisher publisher, TaskListener listener) {
+        this(publisher, listener, false);
+    }
+
+    RetentionEvaluator(DiscardBuildPublisher publisher, TaskListener listener, boolean dryRun) {
+        this.publisher = publisher;
+        this.listener = listener;
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * Computes the builds of the job to discard. Nothing is deleted.
+     *
+     * @param job job whose history is evaluated
+     * @return builds to discard, newest first
+     */
+    DiscardPlan evaluate(Job<?, ?> job) {
+        long start = System.nanoTime();
+        List<BuildRecord> history = BuildIndex.records(job);
+        long historyNanos = System.nanoTime() - start;
+
+        DiscardPlan plan = evaluate(job, history);
+        plan.getStats().history(historyNanos, history.size());
+        return plan;
+    }
+
+    /**
+     * Computes the builds to discard from a given history of the job. Nothing is deleted.
+     *
+     * @param job     job whose history is evaluated
+     * @param history builds of the job, newest first
+     * @return builds to discard, newest first
+     */
+    DiscardPlan evaluate(Job<?, ?> job, Iterable<BuildRecord> history) {
+        List<Rule> rules = createRules(job);
+        try {
+            return evaluate(job, history, rules);
+        } finally {
+            // however the evaluation ends, no thread outlives it
+            for (Rule rule : rules) {
+                if (rule instanceof DeferringRule) ((DeferringRule) rule).close();
+            }
+        }
+    }
+
+    private DiscardPlan evaluate(Job<?, ?> job, Iterable<BuildRecord> history, List<Rule> rules) {
+        DiscardPlan plan = new DiscardPlan();
+        if (rules.isEmpty()) return plan;
+        RetentionStats stats = plan.getStats();
+        Set<String> stripRules = publisher.stripRules();
+        for (Rule rule : rules) {
+            rule.stats = stats.rule(rule.name);
+            rule.strip = stripRules.contains(rule.name);
+        }
+
+        RetentionState state = null;
+        String rulesDigest = null;
+        for (Rule rule : rules) {
+            if (rule.timeIndependent) {
+                state = RetentionState.load(job);
+                rulesDigest = timeIndependentRulesDigest();
+                break;
+            }
+        }
+        int watermark = 0;
+        List<Integer> skipped = new ArrayList<Integer>();
+        // builds up to the cursor of the previous evaluation were not evaluated by it
+        int previousCursor = state == null ? 0 : state.getCursor(rulesDigest);
+        int cursor = 0;
+        long budget = state == null ? -1 : publisher.evaluationTimeBudget();
+        long deadline = System.nanoTime() + budget;
+        int evaluatedNow = 0;
+
+        // builds whose log is being scanned in the background, and the rule scanning it
+        List<BuildRecord> deferred = new ArrayList<BuildRecord>();
+        List<Integer> deferredRules = new ArrayList<Integer>();
+
+        long keepNanos = System.nanoTime();
+        int[] lastBuilds = publisher.isKeepLastBuilds() ? lastBuilds(job) : null;
+        keepNanos = System.nanoTime() - keepNanos;
+        int kept = 0;
+        for (BuildRecord r : history) {
+            int number = r.getNumber();
+            watermark = Math.max(watermark, number);
+            if (r.isKeepLog()
+                    || lastBuilds != null && (r.isBuilding() || Arrays.binarySearch(lastBuilds, number) >= 0)) {
+                skipped.add(number);
+                kept++;
+                for (Rule rule : rules) {
+                    rule.kept(r);
+                }
+                continue;
+            }
+
+            boolean evaluated = state != null && state.isEvaluated(rulesDigest, number);
+            // at least one build is evaluated, so that the history is worked through even with a tiny budget
+            if (!evaluated && cursor == 0 && budget != -1 && evaluatedNow > 0 && System.nanoTime() - deadline > 0) {
+                cursor = number;
+                plan.truncate();
+                listener.getLogger()
+                        .println("Ran out of time at #" + number // $NON-NLS-1$
+                                + ", older builds are checked once by the next discard"); // $NON-NLS-1$
+            }
+            // left for the next evaluation
+            boolean postponed = !evaluated && cursor != 0;
+            if (!evaluated && !postponed) evaluatedNow++;
+            // selected builds are recorded with the rest of the plan below
+            boolean done = evaluated || state != null && !postponed && !r.isBuilding();
+            int deferredRule = check(r, rules, 0, !evaluated && !postponed, plan);
+            if (deferredRule != -1) {
+                deferred.add(r);
+                deferredRules.add(deferredRule);
+            } else if (!done) {
+                skipped.add(number);
+            }
+        }
+        if (lastBuilds != null || kept > 0) stats.keepLastBuilds(keepNanos, kept);
+
+        // the remaining rules are applied in the order of the history, whichever scan completes first
+        boolean stopped = false;
+        for (int i = 0; i < deferred.size(); i++) {
+            BuildRecord r = deferred.get(i);
+            DeferringRule rule = (DeferringRule) rules.get(deferredRules.get(i));
+            if (stopped) {
+                rule.cancel(r);
+                skipped.add(r.getNumber());
+                continue;
+            }
+            try {
+                // the first scan is waited for, so that the history is worked through even with a tiny budget
+                long timeout = budget == -1 || i == 0 ? -1 : Math.max(0, deadline - System.nanoTime());
+                if (!select(rule, r, rule.collect(r, timeout), 0, plan)) {
+                    check(r, rules, deferredRules.get(i) + 1, true, plan);
+                }
+            } catch (TimeoutException e) {
+                stopped = true;
+                plan.truncate();
+                skipped.add(r.getNumber());
+                listener.getLogger()
+                        .println("Ran out of time at #" + r.getNumber() // $NON-NLS-1$
+                                + ", older builds are checked once by the next discard"); // $NON-NLS-1$
+            } catch (InterruptedException e) {
+                stopped = true;
+                plan.truncate();
+                skipped.add(r.getNumber());
+                listener.getLogger()
+                        .println("Interrupted, remaining logs are scanned by the next discard"); // $NON-NLS-1$
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Rule rule : rules) {
+            long start = System.nanoTime();
+            rule.finish(plan);
+            rule.stats.finished(System.nanoTime() - start);
+        }
+        plan.sort();
+        // evaluated again in case they are not deleted
+        for (DiscardPlan.Entry entry : plan) {
+            skipped.add(entry.getNumber());
+        }
+        for (Rule rule : rules) {
+            if (!rule.undecided.isEmpty()) plan.truncate();
+            skipped.addAll(rule.undecided);
+        }
+
+        if (state != null && !dryRun) {
+            // the builds up to the previous cursor which were not reached remain unevaluated
+            if (cursor > previousCursor) cursor = previousCursor;
+            int[] numbers = new int[skipped.size()];
+            int count = 0;
+            for (int number : skipped) {
+                if (number > cursor) numbers[count++] = number;
+            }
+            state.update(rulesDigest, watermark, cursor, Arrays.copyOf(numbers, count));
+            try {
+                state.save(job);
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("")); // $NON-NLS-1$
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Passes a build through the rules from the given one on, until one of them selects it.
+     *
+     * @param timeIndependent whether the build is passed to the time independent rules
+     * @return index of the rule which started deciding on the build in the background, or -1
+     */
+    private static int check(BuildRecord r, List<Rule> rules, int from, boolean timeIndependent, DiscardPlan plan) {
+        for (int i = from; i < rules.size(); i++) {
+            Rule rule = rules.get(i);
+            if (rule.timeIndependent && !timeIndependent) {
+                rule.unchecked(r);
+                continue;
+            }
+            if (rule instanceof DeferringRule && ((DeferringRule) rule).defer(r)) return i;
+            long start = System.nanoTime();
+            String reason = rule.check(r);
+            if (select(rule, r, reason, System.nanoTime() - start, plan)) return -1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the rule selected the build, which is then added to the plan
+     */
+    private static boolean select(Rule rule, BuildRecord r, String reason, long nanos, DiscardPlan plan) {
+        // nothing left to strip, the next rules may still delete it
+        if (rule.strip && r.isStripped()) reason = null;
+        rule.stats.checked(nanos, reason != null);
+        if (reason == null) return false;
+        plan.add(r, rule.name, reason, rule.mode(r));
+        return true;
+    }
+
+    /**
+     * @return digest of the configuration of the rules whose result for a completed build never changes
+     */
+    private String timeIndependentRulesDigest() {
+        Set<String> results = new TreeSet<String>();
+        for (Result result : publisher.resultsToDiscard()) {
+            results.add(result.toString());
+        }
+        return Util.getDigestOf(results + "\n" + publisher.minLogFileSize() + "\n" + publisher.maxLogFileSize() + "\n"
+                + publisher.isCompressedLogFileSize() + "\n" + regexpSettings() + "\n"
+                + new TreeSet<String>(publisher.stripRules()) + "\n" + publisher.logCompactor());
+    }
+
+    private String regexpSettings() {
+        return publisher.getRegexp() + "\n" + publisher.getLogPatterns() + "\n" + publisher.regexpHeadSize() + "\n"
+                + publisher.regexpTailSize();
+    }
+
+    private List<Rule> createRules(Job<?, ?> job) {
+        List<Rule> rules = new ArrayList<Rule>();
+        int daysToKeep = publisher.daysToKeep();
+        int numToKeep = publisher.numToKeep();
+        boolean holdMaxBuilds = numToKeep != -1 && publisher.isHoldMaxBuilds();
+
+        if (daysToKeep != -1) rules.add(new DaysRule(daysToKeep, holdMaxBuilds ? numToKeep : -1));
+        if (numToKeep != -1 && !(daysToKeep != -1 && holdMaxBuilds)) rules.add(new NumRule(numToKeep));
+        if (publisher.intervalDaysToKeep() != -1) rules.add(new IntervalDaysRule(publisher.intervalDaysToKeep()));
+        if (publisher.intervalNumToKeep() != -1) rules.add(new IntervalNumRule(publisher.intervalNumToKeep()));
+        if (!publisher.resultsToDiscard().isEmpty()) rules.add(new StatusRule(publisher.resultsToDiscard()));
+        if (publisher.minLogFileSize() != -1 || publisher.maxLogFileSize() != -1) {
+            rules.add(new LogFileSizeRule(
+                    publisher.minLogFileSize(),
+                    publisher.maxLogFileSize(),
+                    publisher.isCompressedLogFileSize(),
+                    publisher.logCompactor()));
+        }
+        LogPatterns patterns = LogPatterns.parse(publisher.getRegexp(), publisher.getLogPatterns());
+        if (!patterns.isEmpty()) rules.add(new RegexpRule(job, patterns));
+        if (publisher.maxDiskUsage() != -1) {
+            rules.add(new DiskUsageRule(publisher.maxDiskUsage(), publisher.isDiscardLargestFirst()));
+        }
+        return rules;
+    }
+
+    /**
+     * Resolves the permalinks once; they cannot change while evaluating since they are never discarded.
+     * Besides the built-in last build, last stable build and so on, this includes the permalinks contributed by
+     * other plugins, such as promotions.
+     *
+     * @return numbers of the builds the permalinks point to, sorted
+     */
+    private static int[] lastBuilds(Job<?, ?> job) {
+        List<Permalink> permalinks = job.getPermalinks();
+        int[] numbers = new int[permalinks.size()];
+        int count = 0;
+        for (Permalink permalink : permalinks) {
+            Run<?, ?> r = permalink.resolve(job);
+            if (r != null) numbers[count++] = r.getNumber();
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * A single retention rule. Rules see the builds which were not selected by a rule of higher
+     * priority, newest first, and may keep state between builds.
+     */
+    private abstract static class Rule {
+        /**
+         * Name of the publisher field configuring the rule.
+         */
+        final String name;
+        /**
+         * True if the rule always gives the same answer for a completed build. Such rules come after the other
+         * rules selecting builds as they are checked, so that these see every build whichever builds the time
+         * independent rules are passed. Only the disk usage rule, which selects builds once it has seen the whole
+         * history, comes after them.
+         */
+        final boolean timeIndependent;
+        /**
+         * Statistics of the rule in the current evaluation.
+         */
+        RetentionStats.RuleStats stats;
+        /**
+         * Whether the builds selected by the rule are only stripped of their log and artifacts.
+         */
+        boolean strip;
+        /**
+         * Builds the rule failed to decide on, which the next evaluation passes to it again.
+         */
+        final List<Integer> undecided = new ArrayList<Integer>();
+
+        Rule(String name) {
+            this(name, false);
+        }
+
+        Rule(String name, boolean timeIndependent) {
+            this.name = name;
+            this.timeIndependent = timeIndependent;
+        }
+
+        /**
+         * @return the reason to discard the build, or {@code null} to pass it to the next rule
+         */
+        abstract String check(BuildRecord r);
+
+        /**
+         * @return what is done to a build the rule selected
+         */
+        DiscardPlan.Mode mode(BuildRecord r) {
+            return strip ? DiscardPlan.Mode.STRIP : DiscardPlan.Mode.DELETE;
+        }
+
+        /**
+         * Called instead of {@link #check} for the builds which are never discarded.
+         */
+        void kept(BuildRecord r) {}
+
+        /**
+         * Called instead of {@link #check} for the builds a time independent rule is not passed, either because
+         * an earlier evaluation already passed them or because they are left for a later one.
+         */
+        void unchecked(BuildRecord r) {}
+
+        /**
+         * Called once all builds have been checked. Rules which can only decide once they have seen the whole
+         * history add the builds they select to the plan here.
+         */
+        void finish(DiscardPlan plan) {}
+    }
+
+    /**
+     * A rule which may decide on builds in the background, for rules which read logs.
+     */
+    private abstract static class DeferringRule extends Rule {
+
+        DeferringRule(String name, boolean timeIndependent) {
+            super(name, timeIndependent);
+        }
+
+        /**
+         * Starts deciding on a build in the background instead of in {@link #check}.
+         *
+         * @return true if the decision is to be collected with {@link #collect}
+         */
+        abstract boolean defer(BuildRecord r);
+
+        /**
+         * Waits for the decision on a build deferred by {@link #defer}.
+         *
+         * @param timeout nanoseconds to wait for at most, or -1
+         * @return the reason to discard the build, or {@code null} to pass it to the next rule
+         * @throws TimeoutException if the build was not decided in time; deciding is then cancelled
+         */
+        abstract String collect(BuildRecord r, long timeout) throws InterruptedException, TimeoutException;
+
+        /**
+         * Stops deciding on a build deferred by {@link #defer}.
+         */
+        abstract void cancel(BuildRecord r);
+
+        /**
+         * Stops deciding in the background. Called once the evaluation ends, however it ends, and possibly more
+         * than once.
+         */
+        abstract void close();
+    }
+
+    private final class DaysRule extends Rule {
+        private final Calendar threshold;
+        /**
+         * Number of newest builds held back by {@code holdMaxBuilds}, or -1.
+         */
+        private final int maxCount;
+
+        private final List<String> held = new ArrayList<String>();
+        private int index;
+
+        DaysRule(int daysToKeep, int maxCount) {
+            super("daysToKeep");
+            this.threshold = publisher.getCurrentCalendar();
+            this.threshold.add(Calendar.DAY_OF_YEAR, -daysToKeep);
+            this.maxCount = maxCount;
+        }
+
+        @Override
+        String check(BuildRecord r) {
+            if (index++ < maxCount) {
+                held.add(r.toString());
+                return null;
+            }
+            return r.getTimeInMillis() < threshold.getTimeInMillis()
+                    ? "it is older than daysToKeep" // $NON-NLS-1$
+                    : null;
+        }
+
+        @Override
+        void finish(DiscardPlan plan) {
+            if (maxCount == -1) return;
+            if (index <= maxCount) { // clear discard list if beneath minimum build quantity
+                listener.getLogger().println("Too few builds present to remove any, clearing discard list.");
+            } else {
+                listener.getLogger().println("Removing builds from discard list to maintain max quantity:");
+                for (String r : held) {
+                    listener.getLogger().println(r);
+                }
+            }
+        }
+    }
+
+    private static final class NumRule extends Rule {
+        private final int numToKeep;
+        private int index;
+
+        NumRule(int numToKeep) {
+            super("numToKeep");
+            this.numToKeep = numToKeep;
+        }
+
+        @Override
+        String check(BuildRecord r) {
+            return index++ >= numToKeep ? "old than numToKeep" : null;
+        }
+    }
+
+    private final class IntervalDaysRule extends Rule {
+        private final int intervalDaysToKeep;
+        private BuildRecord prev;
+
+        IntervalDaysRule(int intervalDaysToKeep) {
+            super("intervalDaysToKeep");
+            this.intervalDaysToKeep = intervalDaysToKeep;
+        }
+
+        @Override
+        String check(BuildRecord r) {
+            if (prev != null) {
+                Calendar prevCal = publisher.getCurrentCalendar();
+                prevCal.setTimeInMillis(prev.getTimeInMillis());
+                prevCal.add(Calendar.DAY_OF_YEAR, -intervalDaysToKeep);
+                if (r.getTimeInMillis() > prevCal.getTimeInMillis()) {
+                    return "it is old and within build days interval"; // $NON-NLS-1$
+                }
+            }
+            prev = r; // The first build is the latest build
+            return null;
+        }
+    }
+
+    private static final class IntervalNumRule extends Rule {
+        private final int intervalNumToKeep;
+        private int index;
+
+        IntervalNumRule(int intervalNumToKeep) {
+            super("intervalNumToKeep");
+            this.intervalNumToKeep = intervalNumToKeep == 1 ? 2 : intervalNumToKeep;
+        }
+
+        @Override
+        String check(BuildRecord r) {
+            return (index++ % intervalNumToKeep) != 0 ? "it is old and within build number interval" : null;
+        }
+    }
+
+    private static final class StatusRule extends Rule {
+        private final Set<Result> resultsToDiscard;
+
+        StatusRule(Set<Result> resultsToDiscard) {
+            super("resultsToDiscard", true);
+            this.resultsToDiscard = resultsToDiscard;
+        }
+
+        @Override
+        String check(BuildRecord r) {
+            Result result = r.getResult();
+            return resultsToDiscard.contains(result)
+                    ? "status %s is not to be kept".formatted(result) // $NON-NLS-1$
+                    : null;
+        }
+    }
+
+    private static final class LogFileSizeRule extends Rule {
+        private final long minLogFileSize;
+        private final long maxLogFileSize;
+        /**
+         * If true, gzipped logs are measured as they are on disk instead of once uncompressed.
+         */
+        private final boolean compressed;
+        /**
+         * Compacts the logs which are too big instead of discarding their builds, or {@code null}.
+         */
+        private final LogCompactor compactor;
+
+        LogFileSizeRule(long minLogFileSize, long maxLogFileSize, boolean compressed, LogCompactor compactor) {
+            super("logFileSize", true);
+            this.minLogFileSize = minLogFileSize;
+            this.maxLogFileSize = maxLogFileSize;
+            this.compressed = compressed;
+            this.compactor = compactor;
+        }
+
+        private long size(BuildRecord r) {
+            return compressed ? r.getLogFile().length() : r.getLogSize();
+        }
+
+        private boolean tooBig(BuildRecord r) {
+            return maxLogFileSize != -1 && size(r) > maxLogFileSize;
+        }
+
+        @Override
+        String check(BuildRecord r) {
+            long size = size(r);
+            if (compactor != null && tooBig(r)) {
+                // a compacted log is kept, even if it is still too big
+                if (r.isBuilding() || compactor.isCompacted(r)) return null;
+                return "log file size=" + size + " which is too big";
+            }
+            if (minLogFileSize == -1 && size > maxLogFileSize) {
+                return "log file size=" + size + " which is too big";
+            } else if (maxLogFileSize == -1 && size < minLogFileSize) {
+                return "log file size=" + size + " which is too small";
+            } else if (minLogFileSize != -1
+                    && maxLogFileSize != -1
+                    && (size < minLogFileSize || size > maxLogFileSize)) {
+                return "log file size=" + size + " which is too small or too big";
+            }
+            return null;
+        }
+
+        @Override
+        DiscardPlan.Mode mode(BuildRecord r) {
+            return compactor != null && tooBig(r) ? DiscardPlan.Mode.COMPACT_LOG : super.mode(r);
+        }
+    }
+
+    private final class RegexpRule extends DeferringRule {
+        private final LogPatterns patterns;
+        private final LogScanner scanner;
+        private final RegexpVerdictCache verdicts;
+
+        /**
+         * Scans logs in the background when {@code logScanThreads} is greater than 1, otherwise {@code null}.
+         */
+        private final ExecutorService pool;
+        /**
+         * Scans in the background by build number, giving the index of the matching pattern or -1, or
+         * {@code null} if the build was deleted meanwhile.
+         */
+        private final Map<Integer, Future<Integer>> scans = new HashMap<Integer, Future<Integer>>();
+        private final List<LogScanner> workerScanners = Collections.synchronizedList(new ArrayList<LogScanner>());
+        private final ThreadLocal<LogScanner> workerScanner = ThreadLocal.withInitial(() -> {
+            LogScanner scanner = newScanner();
+            workerScanners.add(scanner);
+            return scanner;
+        });
+        private final AtomicLong workerNanos = new AtomicLong();
+
+        RegexpRule(Job<?, ?> job, LogPatterns patterns) {
+            super("regexp", true);
+            this.patterns = patterns;
+            this.scanner = newScanner();
+            this.verdicts = RegexpVerdictCache.load(
+                    job.getRootDir(), Util.getDigestOf(regexpSettings() + "\n" + LogScanner.MAX_LINE_LENGTH));
+            int threads = publisher.logScanThreads();
+            this.pool = threads <= 1
+                    ? null
+                    : Executors.newFixedThreadPool(
+                            threads, new NamingThreadFactory(new DaemonThreadFactory(), "DiscardOldBuild.LogScanner"));
+        }
+
+        private LogScanner newScanner() {
+            return new LogScanner(patterns, publisher.regexpHeadSize(), publisher.regexpTailSize());
+        }
+
+        private String reason(int matched) {
+            if (matched == -1) return null;
+            String label = patterns.getLabel(matched);
+            return label == null
+                    ? "match regular expression" // $NON-NLS-1$
+                    : "match regular expression '%s'".formatted(label); // $NON-NLS-1$
+        }
+
+        /**
+         * Finds the charset of a log, from the index unless the build has to be loaded.
+         *
+         * @return the charset, or {@code null} if the build was deleted meanwhile
+         */
+        private Charset charset(BuildRecord r) {
+            Charset charset = r.getCharset();
+            if (charset == null) {
+                Run<?, ?> run = r.getRun();
+                return run == null ? null : run.getCharset();
+            }
+            return r.getLogFile().getParentFile().isDirectory() ? charset : null;
+        }
+
+        @Override
+        boolean defer(BuildRecord r) {
+            // the log of a running build is scanned as it is now, and not cached
+            if (pool == null || r.isBuilding() || verdicts.get(r.getNumber(), r.getLogFile()) != null) return false;
+            scans.put(r.getNumber(), pool.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    Charset charset = charset(r);
+                    if (charset == null) return null; // deleted meanwhile
+                    return workerScanner.get().match(r.getLogFile(), charset);
+                } finally {
+                    workerNanos.addAndGet(System.nanoTime() - start);
+                }
+            }));
+            return true;
+        }
+
+        @Override
+        String collect(BuildRecord r, long timeout) throws InterruptedException, TimeoutException {
+            Future<Integer> scan = scans.remove(r.getNumber());
+            Integer matched;
+            try {
+                matched = timeout == -1 ? scan.get() : scan.get(timeout, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException | TimeoutException e) {
+                scan.cancel(true);
+                throw e;
+            } catch (ExecutionException e) {
+                undecided.add(r.getNumber());
+                e.getCause().printStackTrace(listener.error("")); // $NON-NLS-1$
+                return null;
+            }
+            if (matched == null) return null;
+            verdicts.put(r.getNumber(), r.getLogFile(), matched);
+            return reason(matched);
+        }
+
+        @Override
+        void cancel(BuildRecord r) {
+            scans.remove(r.getNumber()).cancel(true);
+        }
+
+        @Override
+        void kept(BuildRecord r) {
+            verdicts.retain(r.getNumber());
+        }
+
+        @Override
+        void unchecked(BuildRecord r) {
+            verdicts.retain(r.getNumber());
+        }
+
+        @Override
+        String check(BuildRecord r) {
+            // once interrupted, reading logs only fails
+            if (Thread.currentThread().isInterrupted()) {
+                undecided.add(r.getNumber());
+                return null;
+            }
+            try {
+                File log = r.getLogFile();
+                // the log of a running build may still change
+                Integer matched = r.isBuilding() ? null : verdicts.get(r.getNumber(), log);
+                if (matched == null) {
+                    Charset charset = charset(r);
+                    if (charset == null) return null; // deleted meanwhile
+                    matched = scanner.match(log, charset);
+                    if (!r.isBuilding()) verdicts.put(r.getNumber(), log, matched);
+                }
+                return reason(matched);
+            } catch (IOException e) {
+                undecided.add(r.getNumber());
+                if (Thread.currentThread().isInterrupted()) {
+                    listener.getLogger()
+                            .println("Interrupted, remaining logs are scanned by the next discard"); // $NON-NLS-1$
+                } else {
+                    e.printStackTrace(listener.error("")); // $NON-NLS-1$
+                }
+                return null;
+            }
+        }
+
+        @Override
+        void close() {
+            if (pool != null) pool.shutdownNow();
+        }
+
+        @Override
+        void finish(DiscardPlan plan) {
+            close();
+            stats.finished(workerNanos.get());
+            long bytesRead = scanner.getBytesRead();
+            synchronized (workerScanners) {
+                for (LogScanner s : workerScanners) {
+                    bytesRead += s.getBytesRead();
+                }
+            }
+            stats.logRead(bytesRead);
+            if (dryRun) return;
+            try {
+                verdicts.save();
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("")); // $NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * Selects builds once the history is known, until the builds which are kept fit in the configured disk
+     * usage. Sizes are those recorded in the {@link BuildIndex} when the builds completed.
+     */
+    private static final class DiskUsageRule extends Rule {
+        private final long maxDiskUsage;
+        private final boolean largestFirst;
+        /**
+         * Completed builds which may be selected.
+         */
+        private final List<BuildRecord> candidates = new ArrayList<BuildRecord>();
+
+        private long diskUsage;
+
+        DiskUsageRule(long maxDiskUsage, boolean largestFirst) {
+            super("maxDiskUsage");
+            this.maxDiskUsage = maxDiskUsage;
+            this.largestFirst = largestFirst;
+        }
+
+        @Override
+        void kept(BuildRecord r) {
+            if (!r.isBuilding()) diskUsage += r.getDiskUsage();
+        }
+
+        @Override
+        String check(BuildRecord r) {
+            // the size of a running build is not known yet
+            if (r.isBuilding()) return null;
+            diskUsage += r.getDiskUsage();
+            if (!strip || !r.isStripped()) candidates.add(r);
+            return null;
+        }
+
+        @Override
+        void finish(DiscardPlan plan) {
+            if (diskUsage <= maxDiskUsage) return;
+            // oldest first; builds whose log was scanned in the background were checked last
+            List<BuildRecord> order = new ArrayList<BuildRecord>(candidates);
+            order.sort(Comparator.comparingInt(BuildRecord::getNumber));
+            // stable, so the oldest of builds of the same size goes first
+            if (largestFirst) order.sort(Comparator.comparingLong(BuildRecord::getDiskUsage).reversed());
+            int selected = 0;
+            for (BuildRecord r : order) {
+                if (diskUsage <= maxDiskUsage) break;
+                diskUsage -= r.getDiskUsage();
+                plan.add(r, name, "the builds use more than maxDiskUsage", mode(r)); // $NON-NLS-1$
+                selected++;
+            }
+            stats.selected(selected);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.codahale.metrics.MetricRegistry;
+import hudson.Extension;
+import hudson.PluginWrapper;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.listeners.ItemListener;
+import java.util.concurrent.TimeUnit;
+import jenkins.metrics.api.Metrics;
+import jenkins.model.Jenkins;
+
+/**
+ * Publishes the {@link RetentionStats} of each discard to the Metrics plugin, when it is installed, as timers,
+ * counters and histograms named {@code discard-old-build.<job full name>.<phase or rule>.<metric>}. The metrics of
+ * a job are removed when the job, or a folder holding it, is deleted or renamed.
+ */
+final class RetentionMetrics {
+    private static final String PREFIX = "discard-old-build";
+
+    private RetentionMetrics() {}
+
+    static void publish(Job<?, ?> job, RetentionStats stats) {
+        if (isActive()) Registry.publish(name(PREFIX, job.getFullName()), stats);
+    }
+
+    /**
+     * Removes the metrics of the jobs in an item, or of the item itself.
+     */
+    static void remove(String fullName) {
+        if (isActive()) Registry.remove(name(PREFIX, fullName));
+    }
+
+    private static boolean isActive() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) return false;
+        PluginWrapper metrics = jenkins.getPluginManager().getPlugin("metrics");
+        return metrics != null && metrics.isActive();
+    }
+
+    /**
+     * Removes the metrics of deleted and renamed jobs.
+     */
+    @Extension
+    public static final class Cleaner extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            remove(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            remove(oldFullName);
+        }
+    }
+
+    /**
+     * Only loaded once the Metrics plugin is known to be active.
+     */
+    private static final class Registry {
+        static void publish(String prefix, RetentionStats stats) {
+            MetricRegistry registry = Metrics.metricRegistry();
+            registry.timer(name(prefix, "history", "time")).update(stats.getHistoryNanos(), TimeUnit.NANOSECONDS);
+            registry.histogram(name(prefix, "history", "runs")).update(stats.getHistorySize());
+            if (stats.getKeepLastBuildsNanos() > 0) {
+                registry.timer(name(prefix, "keepLastBuilds", "time"))
+                        .update(stats.getKeepLastBuildsNanos(), TimeUnit.NANOSECONDS);
+            }
+            for (RetentionStats.RuleStats rule : stats.getRules()) {
+                String rulePrefix = name(prefix, rule.getName());
+                registry.timer(name(rulePrefix, "time")).update(rule.getNanos(), TimeUnit.NANOSECONDS);
+                registry.counter(name(rulePrefix, "examined")).inc(rule.getExamined());
+                registry.counter(name(rulePrefix, "deleted")).inc(rule.getDeleted());
+                registry.counter(name(rulePrefix, "stripped")).inc(rule.getStripped());
+                registry.counter(name(rulePrefix, "compacted")).inc(rule.getCompacted());
+                if (rule.isReadingLogs()) {
+                    registry.histogram(name(rulePrefix, "logBytesRead")).update(rule.getLogBytesRead());
+                }
+            }
+            registry.timer(name(prefix, "deletion", "time")).update(stats.getDeletionNanos(), TimeUnit.NANOSECONDS);
+            registry.counter(name(prefix, "deletion", "deleted")).inc(stats.getDeleted());
+            registry.counter(name(prefix, "deletion", "stripped")).inc(stats.getStripped());
+            registry.counter(name(prefix, "deletion", "compacted")).inc(stats.getCompacted());
+            registry.histogram(name(prefix, "deletion", "reclaimedBytes")).update(stats.getReclaimedBytes());
+            registry.timer(name(prefix, "deletion", "throttled"))
+                    .update(stats.getThrottledNanos(), TimeUnit.NANOSECONDS);
+            registry.counter(name(prefix, "deletion", "left")).inc(stats.getLeft());
+        }
+
+        static void remove(String prefix) {
+            Metrics.metricRegistry().removeMatching((name, metric) -> name.startsWith(prefix + "."));
+        }
+    }
+}
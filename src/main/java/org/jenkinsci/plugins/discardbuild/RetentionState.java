@@ -0,0 +1,103 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.XmlFile;
+import hudson.model.Job;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Evaluation state of a job which is kept between evaluations, in {@value #FILE_NAME} in the job directory.
+ *
+ * <p>Status, logfile size and regular expression rules always give the same answer for a completed build.
+ * Once such a build has passed them it does not need to be evaluated by them again, as long as the rules are
+ * configured the same way. The state records the highest build number evaluated this way, together with the
+ * builds below it which were skipped, for instance because they were running or were one of the last builds,
+ * and those which were selected for discarding, in case they could not be deleted.
+ *
+ * <p>When an evaluation runs out of time, the build it stopped at is recorded as a cursor: none of the builds up
+ * to it is considered evaluated, so the next evaluation resumes from there.
+ */
+final class RetentionState {
+    private static final Logger LOGGER = Logger.getLogger(RetentionState.class.getName());
+
+    static final String FILE_NAME = "discard-old-build.xml";
+
+    /**
+     * Digest of the configuration of the rules the watermark is valid for.
+     */
+    private String rulesDigest;
+    /**
+     * Highest build number evaluated by the time independent rules.
+     */
+    private int watermark;
+    /**
+     * Sorted numbers of the builds up to {@link #watermark} which were not evaluated by those rules.
+     */
+    private int[] skipped;
+    /**
+     * Highest build number below which builds were not evaluated because an evaluation ran out of time, or 0.
+     */
+    private int cursor;
+
+    /**
+     * @return the saved state of the job, or an empty state if there is none
+     */
+    static RetentionState load(Job<?, ?> job) {
+        XmlFile file = getFile(job);
+        if (file.exists()) {
+            try {
+                return (RetentionState) file.read();
+            } catch (IOException | ClassCastException e) {
+                LOGGER.log(Level.WARNING, "Ignoring unreadable " + file, e);
+            }
+        }
+        return new RetentionState();
+    }
+
+    void save(Job<?, ?> job) throws IOException {
+        getFile(job).write(this);
+    }
+
+    private static XmlFile getFile(Job<?, ?> job) {
+        return new XmlFile(new File(job.getRootDir(), FILE_NAME));
+    }
+
+    /**
+     * @param rulesDigest digest of the current configuration of the time independent rules
+     * @param number      build number
+     * @return true if the build was already evaluated by the time independent rules as currently configured
+     */
+    boolean isEvaluated(String rulesDigest, int number) {
+        return rulesDigest.equals(this.rulesDigest)
+                && number > cursor
+                && number <= watermark
+                && Arrays.binarySearch(skipped, number) < 0;
+    }
+
+    /**
+     * @param rulesDigest digest of the current configuration of the time independent rules
+     * @return number up to which no build is evaluated, {@link Integer#MAX_VALUE} if the rules changed
+     */
+    int getCursor(String rulesDigest) {
+        return rulesDigest.equals(this.rulesDigest) ? cursor : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Records the outcome of an evaluation.
+     *
+     * @param rulesDigest digest of the configuration of the time independent rules
+     * @param watermark   highest build number evaluated
+     * @param cursor      number up to which no build is evaluated, or 0
+     * @param skipped     numbers between the cursor and the watermark which were not evaluated, in any order
+     */
+    void update(String rulesDigest, int watermark, int cursor, int[] skipped) {
+        this.rulesDigest = rulesDigest;
+        this.watermark = watermark;
+        this.cursor = cursor;
+        this.skipped = skipped.clone();
+        Arrays.sort(this.skipped);
+    }
+}
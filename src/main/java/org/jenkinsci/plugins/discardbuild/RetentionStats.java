@@ -0,0 +1,262 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.Functions;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the time of a single discard went: loading the history, resolving the builds kept by
+ * {@code keepLastBuilds}, each rule and deleting the builds. Printed as a one-line summary in the build log
+ * and published to the Metrics plugin by {@link RetentionMetrics}.
+ *
+ * <p>Evaluation is single threaded; deletions may be recorded concurrently by {@link BuildDeleter}.
+ */
+final class RetentionStats {
+
+    /**
+     * Counters of a single rule.
+     */
+    static final class RuleStats {
+        private final String name;
+        private long nanos;
+        private int examined;
+        private int selected;
+        private long logBytesRead;
+        private boolean readingLogs;
+        private int deleted;
+        private int stripped;
+        private int compacted;
+
+        RuleStats(String name) {
+            this.name = name;
+        }
+
+        void checked(long nanos, boolean selected) {
+            this.nanos += nanos;
+            examined++;
+            if (selected) this.selected++;
+        }
+
+        /**
+         * Counts builds selected once all builds were checked.
+         */
+        void selected(int count) {
+            selected += count;
+        }
+
+        void finished(long nanos) {
+            this.nanos += nanos;
+        }
+
+        void logRead(long bytes) {
+            logBytesRead += bytes;
+            readingLogs = true;
+        }
+
+        /**
+         * @return name of the publisher field configuring the rule, e.g. {@code daysToKeep}
+         */
+        String getName() {
+            return name;
+        }
+
+        long getNanos() {
+            return nanos;
+        }
+
+        int getExamined() {
+            return examined;
+        }
+
+        int getSelected() {
+            return selected;
+        }
+
+        long getLogBytesRead() {
+            return logBytesRead;
+        }
+
+        /**
+         * @return true if the rule looks at the content of logs
+         */
+        boolean isReadingLogs() {
+            return readingLogs;
+        }
+
+        int getDeleted() {
+            return deleted;
+        }
+
+        int getStripped() {
+            return stripped;
+        }
+
+        int getCompacted() {
+            return compacted;
+        }
+    }
+
+    private long historyNanos;
+    private int historySize;
+    private long keepLastBuildsNanos;
+    private int kept;
+    private final Map<String, RuleStats> rules = new LinkedHashMap<String, RuleStats>();
+
+    private boolean deleting;
+    private long deletionNanos;
+    private int deleted;
+    private int stripped;
+    private int compacted;
+    private long reclaimedBytes;
+    private long throttledNanos;
+    private int left;
+
+    void history(long nanos, int size) {
+        historyNanos += nanos;
+        historySize = size;
+    }
+
+    void keepLastBuilds(long nanos, int kept) {
+        keepLastBuildsNanos += nanos;
+        this.kept = kept;
+    }
+
+    RuleStats rule(String name) {
+        RuleStats stats = rules.get(name);
+        if (stats == null) {
+            stats = new RuleStats(name);
+            rules.put(name, stats);
+        }
+        return stats;
+    }
+
+    synchronized void deleted(String rule, long reclaimedBytes) {
+        rule(rule).deleted++;
+        deleted++;
+        this.reclaimedBytes += reclaimedBytes;
+    }
+
+    synchronized void stripped(String rule, long reclaimedBytes) {
+        rule(rule).stripped++;
+        stripped++;
+        this.reclaimedBytes += reclaimedBytes;
+    }
+
+    synchronized void compacted(String rule, long reclaimedBytes) {
+        rule(rule).compacted++;
+        compacted++;
+        this.reclaimedBytes += reclaimedBytes;
+    }
+
+    synchronized void deletion(long nanos) {
+        deleting = true;
+        deletionNanos += nanos;
+    }
+
+    synchronized void throttled(long nanos, int left) {
+        throttledNanos += nanos;
+        this.left += left;
+    }
+
+    long getHistoryNanos() {
+        return historyNanos;
+    }
+
+    int getHistorySize() {
+        return historySize;
+    }
+
+    long getKeepLastBuildsNanos() {
+        return keepLastBuildsNanos;
+    }
+
+    int getKept() {
+        return kept;
+    }
+
+    Collection<RuleStats> getRules() {
+        return Collections.unmodifiableCollection(rules.values());
+    }
+
+    synchronized long getDeletionNanos() {
+        return deletionNanos;
+    }
+
+    synchronized int getDeleted() {
+        return deleted;
+    }
+
+    /**
+     * @return number of builds whose log and artifacts only were deleted
+     */
+    synchronized int getStripped() {
+        return stripped;
+    }
+
+    /**
+     * @return number of builds whose log was compacted
+     */
+    synchronized int getCompacted() {
+        return compacted;
+    }
+
+    /**
+     * @return bytes reclaimed, counting deleted builds whose size was measured only
+     */
+    synchronized long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    synchronized long getThrottledNanos() {
+        return throttledNanos;
+    }
+
+    /**
+     * @return number of selected builds left for the next discard by the {@link DeletionRateLimiter}
+     */
+    synchronized int getLeft() {
+        return left;
+    }
+
+    /**
+     * @return e.g. {@code history 120 runs 3 ms; daysToKeep 120 runs 1 ms 12 deleted; deletion 12 runs 40 ms
+     *     1.2 MB reclaimed}
+     */
+    synchronized String summary() {
+        StringBuilder s = new StringBuilder();
+        s.append("history ").append(historySize).append(" runs ").append(millis(historyNanos));
+        if (keepLastBuildsNanos > 0 || kept > 0) {
+            s.append("; keepLastBuilds ").append(kept).append(" kept ").append(millis(keepLastBuildsNanos));
+        }
+        for (RuleStats rule : rules.values()) {
+            s.append("; ").append(rule.name).append(' ').append(rule.examined).append(" runs ");
+            s.append(millis(rule.nanos));
+            if (rule.readingLogs) {
+                s.append(' ').append(Functions.humanReadableByteSize(rule.logBytesRead)).append(" read");
+            }
+            if (deleting) {
+                s.append(' ').append(rule.deleted).append(" deleted");
+                if (rule.stripped > 0) s.append(' ').append(rule.stripped).append(" stripped");
+                if (rule.compacted > 0) s.append(' ').append(rule.compacted).append(" compacted");
+            } else {
+                s.append(' ').append(rule.selected).append(" selected");
+            }
+        }
+        if (deleting) {
+            s.append("; deletion ").append(deleted).append(" runs ").append(millis(deletionNanos));
+            if (stripped > 0) s.append(' ').append(stripped).append(" stripped");
+            if (compacted > 0) s.append(' ').append(compacted).append(" compacted");
+            s.append(' ').append(Functions.humanReadableByteSize(reclaimedBytes)).append(" reclaimed");
+            if (throttledNanos > 0) s.append(" throttled ").append(millis(throttledNanos));
+            if (left > 0) s.append(' ').append(left).append(" left");
+        }
+        return s.toString();
+    }
+
+    private static String millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos) + " ms";
+    }
+}
@@ -0,0 +1,49 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.model.InvisibleAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Records that the log and artifacts of a build were deleted by a rule configured to strip builds rather than
+ * delete them, and what was deleted. The build itself, with its result and actions, is kept.
+ */
+public final class StrippedBuildAction extends InvisibleAction {
+    private final long timestamp;
+    private final String rule;
+    private final List<String> parts;
+    private final long reclaimedBytes;
+
+    StrippedBuildAction(String rule, List<String> parts, long reclaimedBytes) {
+        this.timestamp = System.currentTimeMillis();
+        this.rule = rule;
+        this.parts = new ArrayList<String>(parts);
+        this.reclaimedBytes = reclaimedBytes;
+    }
+
+    /**
+     * @return time the build was stripped
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return name of the publisher field which selected the build, e.g. {@code daysToKeep}
+     */
+    public String getRule() {
+        return rule;
+    }
+
+    /**
+     * @return parts of the build which were deleted, {@code log} and {@code artifacts}
+     */
+    public List<String> getParts() {
+        return Collections.unmodifiableList(parts);
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+}
@@ -0,0 +1,28 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import junit.framework.TestCase;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of this package with {@code mvn test -Dbenchmark}, reporting the allocation rate
+ * next to the time of each benchmark. {@code -Dbenchmark.include=<regexp>} selects the benchmarks to run.
+ * Results are also written to {@code target/jmh-report.json}, and {@link FilesystemPerformBenchmark} reports the
+ * cost of each discard in {@value FilesystemPerformBenchmark#REPORT}.
+ */
+public class BenchmarkRunner extends TestCase {
+
+    public void testBenchmarks() throws Exception {
+        String include = System.getProperty("benchmark.include", getClass().getPackage().getName() + ".*Benchmark");
+        new Runner(new OptionsBuilder()
+                        .include(include)
+                        .addProfiler(GCProfiler.class)
+                        .resultFormat(ResultFormatType.JSON)
+                        .result("target/jmh-report.json")
+                        .shouldFailOnError(true)
+                        .build())
+                .run();
+    }
+}
@@ -0,0 +1,109 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import static org.mockito.Mockito.*;
+
+import hudson.Util;
+import hudson.model.FreeStyleBuild;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import junit.framework.TestCase;
+
+/**
+ * Test for {@link BuildTrash}.
+ */
+public class BuildTrashTest extends TestCase {
+
+    private File home;
+    private File buildDir;
+    private File trashDir;
+    private FreeStyleBuild build = mock(FreeStyleBuild.class);
+
+    public void setUp() throws Exception {
+        home = Files.createTempDirectory("home").toFile();
+        buildDir = new File(home, "jobs/job/builds/1");
+        trashDir = new File(home, BuildTrash.DIR_NAME);
+        assertTrue(new File(buildDir, "archive").mkdirs());
+        Files.write(new File(buildDir, "build.xml").toPath(), "<build/>".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(buildDir, "archive/artifact.bin").toPath(), new byte[1000]);
+        when(build.getRootDir()).thenReturn(buildDir);
+        doAnswer(invocation -> Files.deleteIfExists(buildDir.toPath())).when(build).delete();
+    }
+
+    public void tearDown() throws Exception {
+        Util.deleteRecursive(home);
+    }
+
+    public void testDeleteMovesFilesToTrash() throws Exception {
+        BuildTrash trash = new BuildTrash(trashDir, -1);
+
+        assertTrue(trash.delete(build, 1008));
+        verify(build, times(1)).delete();
+        assertFalse(buildDir.exists());
+        String[] entries = trashDir.list();
+        assertEquals(1, entries.length);
+        assertFalse(entries[0].endsWith(BuildTrash.STAGING_SUFFIX));
+        assertTrue(new File(trashDir, entries[0] + "/archive/artifact.bin").isFile());
+        assertEquals(1008, trash.getSize());
+
+        assertEquals(1, trash.purge(DeletionRateLimiter.UNLIMITED));
+        assertEquals(0, trashDir.list().length);
+        assertEquals(0, trash.getSize());
+    }
+
+    public void testDeleteLeavesBuildWhenTrashIsFull() throws Exception {
+        BuildTrash trash = new BuildTrash(trashDir, 1000);
+
+        assertFalse(trash.delete(build, 1008));
+        verify(build, never()).delete();
+        assertTrue(new File(buildDir, "archive/artifact.bin").isFile());
+    }
+
+    public void testDeletePutsFilesBackOnFailure() throws Exception {
+        BuildTrash trash = new BuildTrash(trashDir, -1);
+        doThrow(new IOException("in use")).when(build).delete();
+
+        try {
+            trash.delete(build, 1008);
+            fail();
+        } catch (IOException e) {
+            assertEquals("in use", e.getMessage());
+        }
+        assertTrue(new File(buildDir, "build.xml").isFile());
+        assertTrue(new File(buildDir, "archive/artifact.bin").isFile());
+        assertEquals(0, trashDir.list().length);
+        assertEquals(0, trash.getSize());
+    }
+
+    public void testPurgeLeavesBuildBeingDeleted() throws Exception {
+        BuildTrash trash = new BuildTrash(trashDir, -1);
+        int[] purged = new int[1];
+        // the purger runs while the build is deleted, which then fails
+        doAnswer(invocation -> {
+                    purged[0] = trash.purge(DeletionRateLimiter.UNLIMITED);
+                    throw new IOException("in use");
+                })
+                .when(build)
+                .delete();
+
+        try {
+            trash.delete(build, 1008);
+            fail();
+        } catch (IOException e) {
+            assertEquals("in use", e.getMessage());
+        }
+        assertEquals(0, purged[0]);
+        assertTrue(new File(buildDir, "build.xml").isFile());
+        assertTrue(new File(buildDir, "archive/artifact.bin").isFile());
+        assertEquals(0, trashDir.list().length);
+    }
+
+    public void testPurgeDeletesEntriesLeftStaging() throws Exception {
+        assertTrue(new File(trashDir, "1-1" + BuildTrash.STAGING_SUFFIX + "/archive").mkdirs());
+        BuildTrash trash = new BuildTrash(trashDir, -1);
+
+        assertEquals(1, trash.purge(DeletionRateLimiter.UNLIMITED));
+        assertEquals(0, trashDir.list().length);
+    }
+}
@@ -0,0 +1,62 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ * Test for {@link DeletionRateLimiter}.
+ */
+public class DeletionRateLimiterTest extends TestCase {
+
+    private final FakeClock clock = new FakeClock();
+
+    public void testUnlimitedNeverWaits() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, DeletionRateLimiter.UNLIMITED.acquire(Long.MAX_VALUE, 0));
+        }
+    }
+
+    public void testDeletionsPerSecond() throws Exception {
+        DeletionRateLimiter limiter = new DeletionRateLimiter(10, -1, -1, clock);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiter.acquire(0, 0));
+        }
+        // the bucket is empty, the next deletion waits for 100 ms
+        assertEquals(-1, limiter.acquire(0, 0));
+        long waited = limiter.acquire(0, -1);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), waited, 1);
+        assertEquals(waited, clock.now);
+
+        // refilled meanwhile
+        clock.now += TimeUnit.MILLISECONDS.toNanos(250);
+        assertEquals(0, limiter.acquire(0, 0));
+        assertEquals(0, limiter.acquire(0, 0));
+        assertEquals(-1, limiter.acquire(0, 0));
+    }
+
+    public void testLargeDeletionIsPaidAfterwards() throws Exception {
+        DeletionRateLimiter limiter = new DeletionRateLimiter(-1, 1000, -1, clock);
+        // larger than the bucket, let through while it is full
+        assertEquals(0, limiter.acquire(5000, 0));
+        assertEquals(-1, limiter.acquire(1, TimeUnit.SECONDS.toNanos(1)));
+        // the debt of 4000 bytes and the byte itself
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(4001), limiter.acquire(1, -1), TimeUnit.MICROSECONDS.toNanos(1));
+    }
+
+    /**
+     * Time which only passes when sleeping, or when a test moves it forward.
+     */
+    private static final class FakeClock implements DeletionRateLimiter.Clock {
+        long now;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public void sleep(long nanos) {
+            now += nanos;
+        }
+    }
+}
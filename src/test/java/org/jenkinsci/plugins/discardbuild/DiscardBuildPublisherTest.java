@@ -6,15 +6,33 @@ package org.jenkinsci.plugins.discardbuild;
 import static org.mockito.Mockito.*;
 
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.*;
+import hudson.util.DescribableList;
+import hudson.util.PermalinkList;
 import hudson.util.RunList;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 import junit.framework.TestCase;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
@@ -37,11 +55,13 @@ public class DiscardBuildPublisherTest extends TestCase {
     private List<FreeStyleBuild> buildList = new ArrayList<FreeStyleBuild>();
     private List<FreeStyleBuild> buildListHMS =
             new ArrayList<FreeStyleBuild>(); // buildList used to test specific hold max build feature conditions
+    private File jobDir;
 
     public void setUp() throws Exception {
+        jobDir = Files.createTempDirectory("job").toFile();
 
         // setUp hold max build specific histories
-        buildListHMS.add(createBuild(jobHMS, Result.SUCCESS, "20120110", true)); // #10
+        buildListHMS.add(createBuild(jobHMS, Result.SUCCESS, "20120110", true)); // #11
         buildListHMS.add(createBuild(jobHMS, Result.SUCCESS, "20120110")); // #10
         buildListHMS.add(createBuild(jobHMS, Result.SUCCESS, "20120109")); // #9
         buildListHMS.add(createBuild(jobHMS, Result.SUCCESS, "20120108")); // #8
@@ -54,7 +74,7 @@ public class DiscardBuildPublisherTest extends TestCase {
         buildListHMS.add(createBuild(jobHMS, Result.SUCCESS, "20120101")); // #1
 
         // setUp generic build histories
-        buildList.add(createBuild(job, Result.SUCCESS, "20130120", true)); // #20
+        buildList.add(createBuild(job, Result.SUCCESS, "20130120", true)); // #21
         buildList.add(createBuild(job, Result.SUCCESS, "20130120")); // #20
         buildList.add(createBuild(job, Result.FAILURE, "20130119")); // #19
         buildList.add(createBuild(job, Result.SUCCESS, "20130118")); // #18
@@ -77,12 +97,16 @@ public class DiscardBuildPublisherTest extends TestCase {
         buildList.add(createBuild(job, Result.NOT_BUILT, "20130101")); // #1
 
         when(listener.getLogger()).thenReturn(logger);
-        when(job.getBuilds()).thenReturn(RunList.fromRuns(buildList));
+        setBuilds(job, new File(jobDir, "job"), buildList);
         when(build.getParent()).thenReturn(job);
-        when(jobHMS.getBuilds()).thenReturn(RunList.fromRuns(buildListHMS));
+        setBuilds(jobHMS, new File(jobDir, "jobHMS"), buildListHMS);
         when(buildHMS.getParent()).thenReturn(jobHMS);
     }
 
+    public void tearDown() throws Exception {
+        Util.deleteRecursive(jobDir);
+    }
+
     public void testPerformNoCondition() throws Exception {
         DiscardBuildPublisher publisher = getPublisher(
                 new DiscardBuildPublisher("", "", "", "", false, false, false, false, false, "", "", "", true, false));
@@ -107,6 +131,66 @@ public class DiscardBuildPublisherTest extends TestCase {
         }
     }
 
+    public void testPerformDaysToKeepInParallel() throws Exception {
+        DiscardBuildPublisher publisher = new DiscardBuildPublisher(
+                "3", "", "", "", false, false, false, false, false, "", "", "", true, false);
+        publisher.setDeletionThreads("4");
+        publisher = getPublisher(publisher);
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        for (int i = 0; i < 7; i++) {
+            verify(buildList.get(i), never()).delete();
+        }
+        for (int i = 7; i < 21; i++) {
+            verify(buildList.get(i), times(1)).delete();
+        }
+    }
+
+    public void testPerformInParallelIsolatesFailures() throws Exception {
+        when(listener.error(anyString())).thenReturn(new PrintWriter(new StringWriter()));
+        doThrow(new IOException("in use")).when(buildList.get(10)).delete();
+        DiscardBuildPublisher publisher = new DiscardBuildPublisher(
+                "3", "", "", "", false, false, false, false, false, "", "", "", true, false);
+        publisher.setDeletionThreads("4");
+        publisher = getPublisher(publisher);
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        for (int i = 7; i < 21; i++) {
+            verify(buildList.get(i), times(1)).delete();
+        }
+        verify(listener, times(1)).error(anyString());
+    }
+
+    public void testPerformRetriesFailedDeletion() throws Exception {
+        when(listener.error(anyString())).thenReturn(new PrintWriter(new StringWriter()));
+        doThrow(new IOException("in use")).doNothing().when(buildList.get(10)).delete();
+        DiscardBuildPublisher publisher = getPublisher(
+                new DiscardBuildPublisher("3", "", "", "", false, false, false, false, false, "", "", "", true, false));
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        // the build which could not be deleted is selected again; the deleted ones are still in the mocked history
+        verify(buildList.get(10), times(2)).delete();
+    }
+
+    public void testPerformPrintsSummary() throws Exception {
+        DiscardBuildPublisher publisher = getPublisher(
+                new DiscardBuildPublisher("3", "", "", "", false, false, false, false, false, "", "", "", true, false));
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        ArgumentCaptor<String> lines = ArgumentCaptor.forClass(String.class);
+        verify(logger, atLeastOnce()).println(lines.capture());
+        String summary = lines.getAllValues().get(lines.getAllValues().size() - 1);
+        assertTrue(summary, summary.startsWith("Discard old builds: history 21 runs "));
+        assertTrue(summary, summary.contains("; keepLastBuilds 1 kept "));
+        assertTrue(summary, summary.contains("; daysToKeep 20 runs ") && summary.contains(" 14 deleted;"));
+        assertTrue(summary, summary.contains("; deletion 14 runs "));
+    }
+
     public void testPerformNumToKeep() throws Exception {
         DiscardBuildPublisher publisher = getPublisher(
                 new DiscardBuildPublisher("", "", "5", "", false, false, false, false, false, "", "", "", true, false));
@@ -153,19 +237,533 @@ public class DiscardBuildPublisherTest extends TestCase {
         verify(buildList.get(7), times(1)).delete();
         verify(buildList.get(8), times(1)).delete();
         verify(buildList.get(9), times(1)).delete();
-        verify(buildList.get(10), times(2)).delete(); // new build
-        verify(buildList.get(11), times(2)).delete(); // new build
+        verify(buildList.get(10), times(1)).delete(); // discarded once, by numToKeep
+        verify(buildList.get(11), times(1)).delete(); // discarded once, by numToKeep
         verify(buildList.get(12), times(1)).delete();
         verify(buildList.get(13), times(1)).delete();
         verify(buildList.get(14), times(1)).delete();
         verify(buildList.get(15), times(1)).delete();
         verify(buildList.get(16), times(1)).delete();
-        verify(buildList.get(17), times(2)).delete(); // new build
+        verify(buildList.get(17), times(1)).delete(); // discarded once, by numToKeep
         verify(buildList.get(18), times(1)).delete();
         verify(buildList.get(19), times(1)).delete();
         verify(buildList.get(20), times(1)).delete();
     }
 
+    public void testPerformKeepsBuildsKeptForever() throws Exception {
+        when(buildList.get(10).isKeepLog()).thenReturn(true);
+        DiscardBuildPublisher publisher = getPublisher(new DiscardBuildPublisher(
+                "3", "", "", "", false, false, false, false, false, "", "", "", false, false));
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        verify(buildList.get(10), never()).delete();
+        verify(buildList.get(9), times(1)).delete();
+        verify(buildList.get(11), times(1)).delete();
+    }
+
+    public void testPerformKeepsPermalinks() throws Exception {
+        PermalinkProjectAction.Permalink promoted = mock(PermalinkProjectAction.Permalink.class);
+        doReturn(buildList.get(15)).when(promoted).resolve(job);
+        when(job.getPermalinks()).thenReturn(new PermalinkList(Collections.singletonList(promoted)));
+        DiscardBuildPublisher publisher = getPublisher(
+                new DiscardBuildPublisher("3", "", "", "", false, false, false, false, false, "", "", "", true, false));
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        verify(promoted, times(1)).resolve(job);
+        verify(buildList.get(15), never()).delete();
+        verify(buildList.get(14), times(1)).delete();
+    }
+
+    public void testPerformLoadsHistoryOnce() throws Exception {
+        DiscardBuildPublisher publisher = getPublisher(new DiscardBuildPublisher(
+                "3", "3", "5", "3", false, false, true, false, false, // failure
+                "", "100000", "", true, false));
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        verify(job, times(1)).getBuilds();
+        for (int i = 0; i < 21; i++) {
+            verify(buildList.get(i), atMost(1)).delete();
+        }
+    }
+
+    public void testPerformReadsBuildIndex() throws Exception {
+        DiscardBuildPublisher publisher = getPublisher(
+                new DiscardBuildPublisher("", "", "5", "", false, false, false, false, false, "", "", "", true, false));
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        // the history is only loaded to create the index, without keeping the builds; afterwards only the
+        // running build and the builds to delete are
+        verify(job, times(1)).getBuilds();
+        verify(job, times(1)).getBuildByNumber(21); // building
+        for (int i = 1; i < 6; i++) {
+            verify(job, never()).getBuildByNumber(21 - i);
+        }
+        for (int i = 6; i < 21; i++) {
+            verify(job, times(2)).getBuildByNumber(21 - i);
+            verify(buildList.get(i), times(2)).delete();
+        }
+    }
+
+    public void testPerformLeavesDiskUsageToFirstUse() throws Exception {
+        createBuildsWithLogs(3);
+        DiscardBuildPublisher publisher = getPublisher(
+                new DiscardBuildPublisher("", "", "1", "", false, false, false, false, false, "", "", "", false, false));
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        // neither the kept builds nor the deleted ones were measured
+        for (BuildRecord record : BuildIndex.records(job)) {
+            assertEquals(-1, record.getRecordedDiskUsage());
+        }
+    }
+
+    public void testIndexKeepsDiskUsage() throws Exception {
+        List<FreeStyleBuild> builds = createBuildsWithLogs(2);
+        long diskUsage = BuildIndex.records(job).get(1).getDiskUsage();
+        assertTrue(diskUsage > 0);
+
+        // marking the build to be kept forever saves it
+        when(builds.get(1).isKeepLog()).thenReturn(true);
+        new BuildIndex.SaveableListenerImpl().onChange(builds.get(1), null);
+        // the directory is not walked again, which would count this
+        Files.write(new File(builds.get(1).getLogFile().getParentFile(), "extra").toPath(), new byte[1000]);
+
+        BuildRecord record = BuildIndex.records(job).get(1);
+        assertTrue(record.isKeepLog());
+        assertEquals(diskUsage, record.getRecordedDiskUsage());
+        assertEquals(diskUsage, record.getDiskUsage());
+    }
+
+    public void testIndexKeepsNoCompletedBuildReferenced() throws Exception {
+        List<FreeStyleBuild> builds = createBuildsWithLogs(3);
+        when(builds.get(0).isBuilding()).thenReturn(true);
+
+        List<BuildRecord> records = BuildIndex.records(job);
+        // a record holding its build would not need to load it again
+        when(job.getBuildByNumber(anyInt())).thenReturn(null);
+        assertSame(builds.get(0), records.get(0).getRun());
+        for (int i = 1; i < 3; i++) {
+            assertNull(records.get(i).getRun());
+        }
+    }
+
+    public void testPerformDryRun() throws Exception {
+        DiscardBuildPublisher publisher = new DiscardBuildPublisher(
+                "", "", "", "", false, false, true, false, false, // failure
+                "", "", "", true, false);
+        publisher.setDryRun(true);
+
+        getPublisher(publisher).perform((AbstractBuild<?, ?>) build, launcher, listener);
+        for (int i = 0; i < 21; i++) {
+            verify(buildList.get(i), never()).delete();
+        }
+
+        // the dry run is not remembered, so the builds it selected are discarded afterwards
+        publisher.setDryRun(false);
+        getPublisher(publisher).perform((AbstractBuild<?, ?>) build, launcher, listener);
+        for (int i : new int[] {2, 5, 10, 11, 17}) {
+            verify(buildList.get(i), times(1)).delete();
+        }
+    }
+
+    public void testPlanReportsReclaimedBytes() throws Exception {
+        createBuildsWithLogs(3);
+        DiscardBuildPublisher publisher = getPublisher(new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, false, "", "", "^build [12]$", false, false));
+        // as measured by an earlier discard
+        for (BuildRecord record : BuildIndex.records(job)) {
+            record.getDiskUsage();
+        }
+
+        DiscardPlanAction action = new DiscardPlanAction(job, publisher);
+
+        assertEquals(2, action.getBuilds().size());
+        DiscardPlanAction.PlannedBuild planned = action.getBuilds().get(1);
+        assertEquals(1, planned.getNumber());
+        assertEquals("regexp", planned.getRule());
+        assertEquals("build 1\n".length(), planned.getReclaimedBytes());
+        assertEquals(2 * "build 1\n".length(), action.getReclaimedBytes());
+    }
+
+    public void testPlanWritesNothing() throws Exception {
+        createBuildsWithLogs(3);
+        DiscardBuildPublisher publisher = getPublisher(new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, false, "", "", "^build 1$", false, false));
+
+        DiscardPlanAction action = new DiscardPlanAction(job, publisher);
+
+        assertEquals(1, action.getBuilds().size());
+        assertFalse(action.isTruncated());
+        assertFalse(new File(job.getRootDir(), RegexpVerdictCache.FILE_NAME).exists());
+        assertFalse(new File(job.getRootDir(), RetentionState.FILE_NAME).exists());
+        // the index records what the builds are, so that the next plans do not load them again
+        assertTrue(new File(job.getRootDir(), BuildIndex.FILE_NAME).exists());
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testPlanIsReused() throws Exception {
+        List<FreeStyleBuild> builds = createBuildsWithLogs(3);
+        DiscardBuildPublisher publisher = getPublisher(new DiscardBuildPublisher(
+                "", "", "1", "", false, false, false, false, false, "", "", "", false, false));
+        DescribableList publishers = mock(DescribableList.class);
+        when(publishers.get(DiscardBuildPublisher.class)).thenReturn(publisher);
+        when(job.getPublishersList()).thenReturn(publishers);
+
+        DiscardPlanAction action = DiscardPlanAction.of(job);
+        assertEquals(2, action.getBuilds().size());
+        // sizes which were not measured are not measured for the plan
+        assertEquals(-1, action.getBuilds().get(0).getReclaimedBytes());
+        assertEquals(0, action.getReclaimedBytes());
+        assertSame(action, DiscardPlanAction.of(job));
+        action.getBuilds();
+        verify(publisher, times(1)).plan(eq(job), any(TaskListener.class));
+        verify(builds.get(1), never()).getRootDir();
+    }
+
+    public void testPlanReportsTruncation() throws Exception {
+        createBuildsWithLogs(3);
+        DiscardBuildPublisher publisher = new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, false, "", "", "^build [12]$", false, false);
+        publisher.setEvaluationTimeBudget("0");
+        publisher = getPublisher(publisher);
+
+        DiscardPlanAction action = new DiscardPlanAction(job, publisher);
+
+        assertTrue(action.isTruncated());
+    }
+
+    public void testPerformMaxDiskUsage() throws Exception {
+        List<FreeStyleBuild> builds = createBuildsWithLogs(5);
+        writeArtifacts(builds, 1, 3, 1, 2, 1); // MB, #5 to #1
+        DiscardBuildPublisher publisher = new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, false, "", "", "", false, false);
+        publisher.setMaxDiskUsage("6");
+        publisher = getPublisher(publisher);
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        // 8 MB, the oldest builds are discarded until the others fit
+        verify(builds.get(4), times(1)).delete();
+        verify(builds.get(3), times(1)).delete();
+        verify(builds.get(2), never()).delete();
+        verify(builds.get(1), never()).delete();
+        verify(builds.get(0), never()).delete();
+    }
+
+    public void testPerformMaxDiskUsageLargestFirst() throws Exception {
+        List<FreeStyleBuild> builds = createBuildsWithLogs(5);
+        writeArtifacts(builds, 1, 3, 1, 2, 1); // MB, #5 to #1
+        DiscardBuildPublisher publisher = new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, false, "", "", "", false, false);
+        publisher.setMaxDiskUsage("6");
+        publisher.setDiscardLargestFirst(true);
+        publisher = getPublisher(publisher);
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        verify(builds.get(1), times(1)).delete();
+        for (int i : new int[] {0, 2, 3, 4}) {
+            verify(builds.get(i), never()).delete();
+        }
+    }
+
+    public void testPerformCompressedLogs() throws Exception {
+        List<FreeStyleBuild> builds = createBuildsWithLogs(2);
+        // #1 has a log of 1000 lines, which compresses to much less than 1000 bytes
+        File log = builds.get(1).getLogFile();
+        File gz = new File(log.getParentFile(), "log.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz.toPath()))) {
+            for (int i = 0; i < 1000; i++) {
+                out.write("build 1\n".getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        Files.delete(log.toPath());
+        doReturn(gz).when(builds.get(1)).getLogFile();
+        when(builds.get(1).getCharset()).thenReturn(StandardCharsets.UTF_8);
+        DiscardBuildPublisher publisher = new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, false, "", "1000", "", false, false);
+        publisher.setCompressedLogFileSize(true);
+
+        getPublisher(publisher).perform((AbstractBuild<?, ?>) build, launcher, listener);
+        verify(builds.get(1), never()).delete();
+
+        getPublisher(new DiscardBuildPublisher(
+                        "", "", "", "", false, false, false, false, false, "", "", "^build 1$", false, false))
+                .perform((AbstractBuild<?, ?>) build, launcher, listener);
+        getPublisher(new DiscardBuildPublisher(
+                        "", "", "", "", false, false, false, false, false, "", "1000", "", false, false))
+                .perform((AbstractBuild<?, ?>) build, launcher, listener);
+        verify(builds.get(1), times(2)).delete();
+        verify(builds.get(0), never()).delete();
+    }
+
+    public void testPerformCompactsLogs() throws Exception {
+        List<FreeStyleBuild> builds = createBuildsWithLogs(3);
+        File log = builds.get(1).getLogFile();
+        byte[] line = "[INFO] Building module\n".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 100; i++) {
+            Files.write(log.toPath(), line, StandardOpenOption.APPEND);
+        }
+        DiscardBuildPublisher publisher = new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, false, "", "1000", "", false, false);
+        publisher.setCompactLogs(true);
+        publisher = getPublisher(publisher);
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        for (FreeStyleBuild b : builds) {
+            verify(b, never()).delete();
+        }
+        assertFalse(log.exists());
+        assertTrue(new File(log.getParentFile(), "log.gz").isFile());
+        verify(logger).printf("The log of #%d is compacted because %s%n", 2, "log file size=2308 which is too big");
+    }
+
+    public void testPerformLogPatternsReportLabel() throws Exception {
+        List<FreeStyleBuild> builds = createBuildsWithLogs(3);
+        DiscardBuildPublisher publisher = new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, false, "", "", "", false, false);
+        publisher.setLogPatterns("first=^build 1$\nsecond=build 2");
+        publisher = getPublisher(publisher);
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        verify(builds.get(0), never()).delete();
+        verify(builds.get(1), times(1)).delete();
+        verify(builds.get(2), times(1)).delete();
+        verify(logger).printf("#%d is removed because %s%n", 2, "match regular expression 'second'");
+        verify(logger).printf("#%d is removed because %s%n", 1, "match regular expression 'first'");
+    }
+
+    public void testPerformScansLogsInParallel() throws Exception {
+        List<FreeStyleBuild> builds = createBuildsWithLogs(4);
+        DiscardBuildPublisher publisher = new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, false, "", "", "", false, false);
+        publisher.setLogPatterns("first=^build 1$\nsecond=build [23]");
+        publisher.setLogScanThreads("2");
+        publisher = getPublisher(publisher);
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        verify(builds.get(0), never()).delete();
+        for (int i = 1; i < 4; i++) {
+            verify(builds.get(i), times(1)).delete();
+        }
+        InOrder inOrder = inOrder(logger);
+        inOrder.verify(logger).printf("#%d is removed because %s%n", 3, "match regular expression 'second'");
+        inOrder.verify(logger).printf("#%d is removed because %s%n", 2, "match regular expression 'second'");
+        inOrder.verify(logger).printf("#%d is removed because %s%n", 1, "match regular expression 'first'");
+    }
+
+    public void testPerformStripsBuilds() throws Exception {
+        List<FreeStyleBuild> builds = createBuildsWithLogs(3);
+        DiscardBuildPublisher publisher = getPublisher(new DiscardBuildPublisher(
+                "", "", "1", "", false, false, false, false, false, "", "", "", false, false));
+        publisher.setStripRules("numToKeep");
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        for (int i = 1; i < 3; i++) {
+            FreeStyleBuild stripped = builds.get(i);
+            verify(stripped, never()).delete();
+            verify(stripped, times(1)).deleteArtifacts();
+            verify(stripped, times(1)).addAction(any(StrippedBuildAction.class));
+            String log = new String(Files.readAllBytes(stripped.getLogFile().toPath()), StandardCharsets.UTF_8);
+            assertEquals("Log discarded by numToKeep\n", log);
+        }
+        verify(builds.get(0), never()).deleteArtifacts();
+        verify(logger).println(contains("2 stripped"));
+    }
+
+    public void testSetStripRulesRejectsUnknownRules() {
+        DiscardBuildPublisher publisher = new DiscardBuildPublisher(
+                "", "", "1", "", false, false, false, false, false, "", "", "", false, false);
+        publisher.setStripRules("numToKeep, maxDiskUsage");
+        assertEquals(2, publisher.stripRules().size());
+
+        try {
+            publisher.setStripRules("numToKeep daysTokeep");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Unknown rules [daysTokeep]", e.getMessage());
+        }
+        assertEquals("numToKeep, maxDiskUsage", publisher.getStripRules());
+    }
+
+    public void testPerformRegexpReadsCharsetFromIndex() throws Exception {
+        List<FreeStyleBuild> builds = createBuildsWithLogs(3);
+        BuildIndex.records(job);
+        clearInvocations(job);
+        DiscardBuildPublisher publisher = getPublisher(new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, false, "", "", "^build 1$", false, false));
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        verify(builds.get(2), times(1)).delete();
+        // only the deleted build was loaded
+        verify(job, never()).getBuildByNumber(3);
+        verify(job, never()).getBuildByNumber(2);
+    }
+
+    public void testPerformRegexpReusesVerdicts() throws Exception {
+        List<FreeStyleBuild> builds = createBuildsWithLogs(3);
+        DiscardBuildPublisher publisher = getPublisher(new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, false, "", "", "^build 1$", false, false));
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+        verify(builds.get(2), times(1)).delete();
+
+        // the log of #2 would now match, but its length and modification time did not change
+        File log = builds.get(1).getLogFile();
+        long lastModified = log.lastModified();
+        Files.write(log.toPath(), "build 1\n".getBytes(StandardCharsets.UTF_8));
+        assertTrue(log.setLastModified(lastModified));
+        // the status rule changes the configuration of the time independent rules, so #2 is evaluated again
+        publisher = getPublisher(new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, true, "", "", "^build 1$", false, false));
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+        verify(builds.get(1), never()).delete();
+
+        assertTrue(log.setLastModified(lastModified + 2000));
+        publisher = getPublisher(new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, true, false, "", "", "^build 1$", false, false));
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+        verify(builds.get(1), times(1)).delete();
+        verify(builds.get(0), never()).delete();
+    }
+
+    public void testPerformRegexpKeepsVerdictsOfBuildsEvaluatedBefore() throws Exception {
+        List<FreeStyleBuild> builds = createBuildsWithLogs(3);
+        DiscardBuildPublisher publisher = getPublisher(new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, false, "", "", "^build 1$", false, false));
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+        // #2 is not scanned again, its verdict is kept all the same
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        File log = builds.get(1).getLogFile();
+        long lastModified = log.lastModified();
+        Files.write(log.toPath(), "build 1\n".getBytes(StandardCharsets.UTF_8));
+        assertTrue(log.setLastModified(lastModified));
+        publisher = getPublisher(new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, true, "", "", "^build 1$", false, false));
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+        verify(builds.get(1), never()).delete();
+    }
+
+    public void testPerformRegexpScansUnreadableLogsAgain() throws Exception {
+        assertUnreadableLogScannedAgain("");
+    }
+
+    public void testEvaluateStopsLogScannersOnFailure() throws Exception {
+        createBuildsWithLogs(3);
+        DiscardBuildPublisher publisher = new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, false, "", "", "^build 1$", false, false);
+        publisher.setLogScanThreads("2");
+        publisher = getPublisher(publisher);
+        List<BuildRecord> records = BuildIndex.records(job);
+        // fails once the log of the first build is being scanned
+        Iterable<BuildRecord> history = () -> new Iterator<BuildRecord>() {
+            private int next;
+
+            public boolean hasNext() {
+                return true;
+            }
+
+            public BuildRecord next() {
+                if (next == 1) throw new IllegalStateException("broken history");
+                return records.get(next++);
+            }
+        };
+
+        try {
+            new RetentionEvaluator(publisher, listener).evaluate(job, history);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("broken history", e.getMessage());
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (logScanners() > 0) {
+            assertTrue("log scanners still running", System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+    }
+
+    private static int logScanners() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("DiscardOldBuild.LogScanner")) count++;
+        }
+        return count;
+    }
+
+    public void testPerformRegexpScansUnreadableLogsAgainInParallel() throws Exception {
+        assertUnreadableLogScannedAgain("2");
+    }
+
+    private void assertUnreadableLogScannedAgain(String logScanThreads) throws Exception {
+        List<FreeStyleBuild> builds = createBuildsWithLogs(3);
+        File log = builds.get(2).getLogFile();
+        Files.delete(log.toPath());
+        Files.createDirectory(log.toPath());
+        when(listener.error(anyString())).thenReturn(new PrintWriter(new StringWriter()));
+        DiscardBuildPublisher publisher = new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, false, "", "", "^build 1$", false, false);
+        publisher.setLogScanThreads(logScanThreads);
+        publisher = getPublisher(publisher);
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+        verify(builds.get(2), never()).delete();
+
+        Files.delete(log.toPath());
+        Files.write(log.toPath(), "build 1\n".getBytes(StandardCharsets.UTF_8));
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+        verify(builds.get(2), times(1)).delete();
+        verify(builds.get(1), never()).delete();
+    }
+
+    public void testPerformSkipsBuildsEvaluatedBefore() throws Exception {
+        List<FreeStyleBuild> builds = createBuildsWithLogs(3);
+        when(builds.get(0).isBuilding()).thenReturn(true);
+        DiscardBuildPublisher publisher = getPublisher(new DiscardBuildPublisher(
+                "", "", "", "", false, false, true, false, false, "", "", "", false, false));
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        // results of builds evaluated before are not looked at again, except for the one which was running
+        for (FreeStyleBuild b : builds) {
+            when(b.getResult()).thenReturn(Result.FAILURE);
+        }
+        when(builds.get(0).isBuilding()).thenReturn(false);
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+
+        verify(builds.get(0), times(1)).delete();
+        verify(builds.get(1), never()).delete();
+        verify(builds.get(2), never()).delete();
+    }
+
+    public void testPerformResumesAfterTimeBudget() throws Exception {
+        List<FreeStyleBuild> builds = createBuildsWithLogs(3);
+        DiscardBuildPublisher publisher = getPublisher(new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, false, "", "", "^build 1$", false, false));
+        publisher.setEvaluationTimeBudget("0");
+
+        // a single build is evaluated by each discard, newest first
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+        verify(builds.get(2), never()).delete();
+
+        publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+        verify(builds.get(2), times(1)).delete();
+        verify(builds.get(1), never()).delete();
+        verify(builds.get(0), never()).delete();
+    }
+
     public void testPerformIntervalDaysToKeep() throws Exception {
         DiscardBuildPublisher publisher = getPublisher(
                 new DiscardBuildPublisher("", "3", "", "", false, false, false, false, false, "", "", "", true, false));
@@ -280,6 +878,58 @@ public class DiscardBuildPublisherTest extends TestCase {
         }
     }
 
+    /**
+     * Replaces the history of {@link #job} with builds #count to #1, whose logs contain "build #".
+     */
+    private List<FreeStyleBuild> createBuildsWithLogs(int count) throws Exception {
+        List<FreeStyleBuild> builds = new ArrayList<FreeStyleBuild>();
+        for (int i = count; i > 0; i--) {
+            builds.add(createBuild(job, Result.SUCCESS, "20130120"));
+        }
+        File rootDir = new File(jobDir, "jobWithLogs");
+        setBuilds(job, rootDir, builds);
+        for (int i = count; i > 0; i--) {
+            File log = new File(rootDir, "builds/" + i + "/log");
+            Files.write(log.toPath(), ("build " + i + "\n").getBytes(StandardCharsets.UTF_8));
+            doReturn(log).when(builds.get(count - i)).getLogFile();
+        }
+        return builds;
+    }
+
+    /**
+     * Adds an artifact of the given number of megabytes to each build, newest first.
+     */
+    private void writeArtifacts(List<FreeStyleBuild> builds, int... megabytes) throws IOException {
+        for (int i = 0; i < builds.size(); i++) {
+            File dir = new File(job.getBuildDir(), Integer.toString(builds.get(i).getNumber()));
+            try (RandomAccessFile artifact = new RandomAccessFile(new File(dir, "artifact.bin"), "rw")) {
+                artifact.setLength(megabytes[i] * 1024L * 1024L);
+            }
+        }
+    }
+
+    /**
+     * Numbers the builds, newest first, and creates their directories.
+     */
+    private void setBuilds(FreeStyleProject project, File rootDir, final List<FreeStyleBuild> builds) {
+        File buildDir = new File(rootDir, "builds");
+        for (int i = 0; i < builds.size(); i++) {
+            int number = builds.size() - i;
+            when(builds.get(i).getNumber()).thenReturn(number);
+            assertTrue(new File(buildDir, Integer.toString(number)).mkdirs());
+        }
+        when(project.getRootDir()).thenReturn(rootDir);
+        when(project.getBuildDir()).thenReturn(buildDir);
+        when(project.getBuilds()).thenReturn(RunList.fromRuns(builds));
+        when(project.getPermalinks()).thenReturn(new PermalinkList());
+        when(project.getBuildByNumber(anyInt())).thenAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) {
+                int number = (Integer) invocation.getArguments()[0];
+                return number < 1 || number > builds.size() ? null : builds.get(builds.size() - number);
+            }
+        });
+    }
+
     private FreeStyleBuild createBuild(FreeStyleProject project, Result result, String yyyymmdd) throws Exception {
         return createBuild(project, result, yyyymmdd, false);
     }
@@ -293,6 +943,7 @@ public class DiscardBuildPublisherTest extends TestCase {
         Calendar cal = Calendar.getInstance();
         cal.setTime(sdf.parse(yyyymmdd));
         when(build.getTimestamp()).thenReturn(cal);
+        when(build.getTimeInMillis()).thenReturn(cal.getTimeInMillis());
         doNothing().when(build).delete();
 
         return build;
@@ -0,0 +1,128 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import static org.mockito.Mockito.*;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ * Test for {@link DiscardFlights}.
+ */
+public class DiscardFlightsTest extends TestCase {
+
+    private FreeStyleProject job = mock(FreeStyleProject.class);
+    private FreeStyleProject otherJob = mock(FreeStyleProject.class);
+    private TaskListener listener = mock(TaskListener.class);
+
+    public void testDiscardMergesRequestsWhileRunning() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final DiscardBuildPublisher first = mock(DiscardBuildPublisher.class);
+        doAnswer(invocation -> {
+                    started.countDown();
+                    assertTrue(release.await(10, TimeUnit.SECONDS));
+                    return null;
+                })
+                .when(first)
+                .discardOnce(job, listener);
+        DiscardBuildPublisher second = mock(DiscardBuildPublisher.class);
+        DiscardBuildPublisher third = mock(DiscardBuildPublisher.class);
+        DiscardBuildPublisher other = mock(DiscardBuildPublisher.class);
+
+        Thread running = new Thread(() -> discard(job, first));
+        running.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertFalse(DiscardFlights.discard(job, second, listener));
+        assertFalse(DiscardFlights.discard(job, third, listener));
+        // other jobs are not held up
+        assertTrue(DiscardFlights.discard(otherJob, other, listener));
+        verify(other, times(1)).discardOnce(otherJob, listener);
+
+        release.countDown();
+        running.join(10000);
+        assertFalse(running.isAlive());
+        // the latest request is run once more by the running discard
+        verify(second, never()).discardOnce(any(), any(TaskListener.class));
+        verify(third, times(1)).discardOnce(job, listener);
+
+        assertTrue(DiscardFlights.discard(job, second, listener));
+        verify(second, times(1)).discardOnce(job, listener);
+    }
+
+    public void testDiscardReturnsWhileRequestsKeepArriving() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final DiscardBuildPublisher first = mock(DiscardBuildPublisher.class);
+        doAnswer(invocation -> {
+                    started.countDown();
+                    assertTrue(release.await(10, TimeUnit.SECONDS));
+                    return null;
+                })
+                .when(first)
+                .discardOnce(job, listener);
+        // each discard is requested again while it runs, as by the builds completing meanwhile
+        final int count = 5;
+        final List<DiscardBuildPublisher> requests = new ArrayList<DiscardBuildPublisher>();
+        final List<Thread> requesters = new ArrayList<Thread>();
+        final Map<DiscardBuildPublisher, Thread> ranBy = new ConcurrentHashMap<DiscardBuildPublisher, Thread>();
+        for (int i = 0; i < count; i++) {
+            requests.add(mock(DiscardBuildPublisher.class));
+        }
+        for (int i = 0; i < count; i++) {
+            final DiscardBuildPublisher request = requests.get(i);
+            final DiscardBuildPublisher next = i + 1 < count ? requests.get(i + 1) : null;
+            doAnswer(invocation -> {
+                        assertNull(ranBy.put(request, Thread.currentThread()));
+                        if (next != null) {
+                            Thread requester = new Thread(() -> discard(job, next));
+                            synchronized (requesters) {
+                                requesters.add(requester);
+                            }
+                            requester.start();
+                        }
+                        return null;
+                    })
+                    .when(request)
+                    .discardOnce(job, listener);
+        }
+
+        Thread running = new Thread(() -> discard(job, first));
+        running.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertFalse(DiscardFlights.discard(job, requests.get(0), listener));
+        release.countDown();
+
+        // the first discard runs once more only
+        running.join(10000);
+        assertFalse(running.isAlive());
+        for (int i = 0; i < count - 1; i++) {
+            Thread requester;
+            synchronized (requesters) {
+                assertTrue(requesters.size() > i);
+                requester = requesters.get(i);
+            }
+            requester.join(10000);
+            assertFalse(requester.isAlive());
+        }
+        assertEquals(count, ranBy.size());
+        assertSame(running, ranBy.get(requests.get(0)));
+        for (int i = 1; i < count; i++) {
+            assertNotSame(running, ranBy.get(requests.get(i)));
+        }
+    }
+
+    private void discard(FreeStyleProject job, DiscardBuildPublisher publisher) {
+        try {
+            DiscardFlights.discard(job, publisher, listener);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import static org.mockito.Mockito.*;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import junit.framework.TestCase;
+
+/**
+ * Test for {@link DiscardQueue}.
+ */
+public class DiscardQueueTest extends TestCase {
+
+    private List<Runnable> tasks = new ArrayList<Runnable>();
+    private DiscardQueue queue = new DiscardQueue(tasks::add);
+    private FreeStyleProject job = mock(FreeStyleProject.class);
+    private FreeStyleProject otherJob = mock(FreeStyleProject.class);
+
+    public void setUp() throws Exception {
+        when(job.getFullName()).thenReturn("job");
+        when(otherJob.getFullName()).thenReturn("other");
+    }
+
+    public void testScheduleCoalescesSameJob() throws Exception {
+        DiscardBuildPublisher first = mock(DiscardBuildPublisher.class);
+        DiscardBuildPublisher second = mock(DiscardBuildPublisher.class);
+
+        queue.schedule(job, first);
+        queue.schedule(job, second);
+        assertEquals(1, queue.getDepth());
+        assertEquals(1, tasks.size());
+
+        tasks.get(0).run();
+        assertEquals(0, queue.getDepth());
+        assertEquals(0, queue.getLag());
+        verify(first, never()).discard(any(), any(TaskListener.class));
+        verify(second, times(1)).discard(eq(job), any(TaskListener.class));
+    }
+
+    public void testScheduleKeepsJobsApart() throws Exception {
+        DiscardBuildPublisher publisher = mock(DiscardBuildPublisher.class);
+
+        queue.schedule(job, publisher);
+        queue.schedule(otherJob, publisher);
+        assertEquals(2, queue.getDepth());
+        assertEquals(2, tasks.size());
+
+        for (Runnable task : tasks) {
+            task.run();
+        }
+        verify(publisher, times(1)).discard(eq(job), any(TaskListener.class));
+        verify(publisher, times(1)).discard(eq(otherJob), any(TaskListener.class));
+    }
+
+    public void testScheduleAgainAfterProcessing() throws Exception {
+        DiscardBuildPublisher publisher = mock(DiscardBuildPublisher.class);
+
+        queue.schedule(job, publisher);
+        tasks.get(0).run();
+        queue.schedule(job, publisher);
+        assertEquals(2, tasks.size());
+
+        tasks.get(1).run();
+        verify(publisher, times(2)).discard(eq(job), any(TaskListener.class));
+    }
+
+    public void testShutdownStopsWorker() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        DiscardQueue queue = new DiscardQueue(executor);
+        DiscardBuildPublisher publisher = mock(DiscardBuildPublisher.class);
+
+        queue.shutdown();
+        assertTrue(executor.isShutdown());
+
+        queue.schedule(job, publisher);
+        assertEquals(0, queue.getDepth());
+        verify(publisher, never()).discard(any(), any(TaskListener.class));
+    }
+}
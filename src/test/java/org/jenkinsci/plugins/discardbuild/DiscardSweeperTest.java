@@ -0,0 +1,107 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import static org.mockito.Mockito.*;
+
+import hudson.model.AbstractProject;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import hudson.util.DescribableList;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import org.mockito.InOrder;
+
+/**
+ * Test for {@link DiscardSweeper}.
+ */
+@SuppressWarnings("rawtypes")
+public class DiscardSweeperTest extends TestCase {
+
+    private DiscardSweeper sweeper = new DiscardSweeper();
+    private TaskListener listener = mock(TaskListener.class);
+    private List<AbstractProject> projects = new ArrayList<AbstractProject>();
+    private List<DiscardBuildPublisher> publishers = new ArrayList<DiscardBuildPublisher>();
+
+    public void setUp() throws Exception {
+        when(listener.getLogger()).thenReturn(mock(PrintStream.class));
+        // in reverse order, to check that jobs are sorted
+        addProject("c", true);
+        addProject("b", true);
+        addProject("none", false);
+        addProject("a", true);
+    }
+
+    public void testSweepAppliesConfiguredJobs() throws Exception {
+        sweeper.sweep(projects, 2, -1, listener);
+
+        verify(publishers.get(0), times(1)).apply(eq(projects.get(0)), any(TaskListener.class));
+        verify(publishers.get(1), times(1)).apply(eq(projects.get(1)), any(TaskListener.class));
+        verify(publishers.get(2), times(1)).apply(eq(projects.get(3)), any(TaskListener.class));
+    }
+
+    public void testSweepResumesAfterTimeBudget() throws Exception {
+        DiscardBuildPublisher a = publishers.get(2);
+        doAnswer(invocation -> {
+                    Thread.sleep(500);
+                    return null;
+                })
+                .when(a)
+                .apply(eq(projects.get(3)), any(TaskListener.class));
+
+        sweeper.sweep(projects, 1, TimeUnit.MILLISECONDS.toNanos(200), listener);
+        verify(a, times(1)).apply(eq(projects.get(3)), any(TaskListener.class));
+        verify(publishers.get(1), never()).apply(eq(projects.get(1)), any(TaskListener.class));
+        verify(publishers.get(0), never()).apply(eq(projects.get(0)), any(TaskListener.class));
+
+        sweeper.sweep(projects, 1, -1, listener);
+        InOrder order = inOrder(publishers.get(1), publishers.get(0), a);
+        order.verify(publishers.get(1)).apply(eq(projects.get(1)), any(TaskListener.class));
+        order.verify(publishers.get(0)).apply(eq(projects.get(0)), any(TaskListener.class));
+        order.verify(a).apply(eq(projects.get(3)), any(TaskListener.class));
+    }
+
+    public void testSweepDoesNotInterleaveJobs() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        when(listener.getLogger()).thenReturn(new PrintStream(log, true, StandardCharsets.UTF_8));
+        for (int i : new int[] {0, 1, 3}) {
+            AbstractProject project = projects.get(i);
+            doAnswer(invocation -> {
+                        TaskListener jobListener = invocation.getArgument(1);
+                        for (int line = 0; line < 3; line++) {
+                            jobListener.getLogger().println("line of " + project.getFullName());
+                            Thread.sleep(20);
+                        }
+                        return null;
+                    })
+                    .when(publishers.get(i == 3 ? 2 : i))
+                    .apply(eq(project), any(TaskListener.class));
+        }
+
+        sweeper.sweep(projects, 3, -1, listener);
+
+        String output = log.toString(StandardCharsets.UTF_8);
+        for (String name : new String[] {"a", "b", "c"}) {
+            String line = "line of " + name + System.lineSeparator();
+            assertTrue(output, output.contains("Discarding old builds of " + name + System.lineSeparator() + line
+                    + line + line));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addProject(String name, boolean configured) {
+        FreeStyleProject project = mock(FreeStyleProject.class);
+        DescribableList list = mock(DescribableList.class);
+        when(project.getFullName()).thenReturn(name);
+        when(project.getPublishersList()).thenReturn(list);
+        if (configured) {
+            DiscardBuildPublisher publisher = mock(DiscardBuildPublisher.class);
+            when(list.get(DiscardBuildPublisher.class)).thenReturn(publisher);
+            publishers.add(publisher);
+        }
+        projects.add(project);
+    }
+}
@@ -0,0 +1,371 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import static org.mockito.Mockito.*;
+
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.InvisibleAction;
+import hudson.model.Job;
+import hudson.model.PermalinkProjectAction.Permalink;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.util.PermalinkList;
+import hudson.util.RunList;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * The whole {@link DiscardBuildPublisher#perform} path against real build directories, deleting builds. Each
+ * invocation gets a fresh job of {@code builds} build directories, each with a {@code build.xml} and a log of
+ * {@code logSize} bytes. Only the job and its builds are mocked, and a build is only mocked once the publisher
+ * loads it, as {@code RunMap} does: its {@code build.xml} is then parsed, and the parsed document is held by the
+ * build for as long as the build is referenced.
+ *
+ * <p>With a {@code warm} index, the {@link BuildIndex} of the job exists before the invocation, as for every
+ * discard but the first one. With a {@code cold} index, there is none, and the invocation loads the whole history
+ * to create it.
+ *
+ * <p>Besides the time reported by JMH, each invocation appends a line to {@value #REPORT} with its wall time,
+ * heap high-water mark, files touched and bytes read and deleted. These are observed on the JVM and the file
+ * system only, so that the reports of two versions of the plugin can be compared. The harness itself relies on
+ * the {@link BuildRecord}s of {@link SyntheticHistory}, so it only runs against versions which have them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FilesystemPerformBenchmark {
+    static final String REPORT = "target/filesystem-benchmark.csv";
+
+    @Param({"1000", "5000"})
+    public int builds;
+
+    @Param({"4096", "65536"})
+    public int logSize;
+
+    @Param({
+        "days",
+        "num",
+        "intervalDays",
+        "intervalNum",
+        "status",
+        "logFileSize",
+        "regexp",
+        "diskUsage",
+        "keepLastBuilds",
+        "holdMaxBuilds",
+        "all"
+    })
+    public String rule;
+
+    @Param({"warm", "cold"})
+    public String index;
+
+    private File rootDir;
+    private FreeStyleProject job;
+    private FreeStyleBuild build;
+    private Launcher launcher;
+    private BuildListener listener;
+    private DiscardBuildPublisher publisher;
+    private List<BuildRecord> history;
+
+    /**
+     * Size and modification time of each file of the job before the invocation, by path.
+     */
+    private Map<String, long[]> filesBefore;
+
+    private long heapBefore;
+    private long readBefore;
+    private long wallNanos;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        publisher = RetentionEvaluatorBenchmark.publisher(rule);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        launcher = mock(Launcher.class, withSettings().stubOnly());
+        listener = mock(BuildListener.class, withSettings().stubOnly());
+        when(listener.getLogger()).thenReturn(new PrintStream(OutputStream.nullOutputStream()));
+        rootDir = Files.createTempDirectory("benchmark").toFile();
+        job = mock(FreeStyleProject.class, withSettings().stubOnly());
+        when(job.getRootDir()).thenReturn(rootDir);
+        when(job.getBuildDir()).thenReturn(new File(rootDir, "builds"));
+        when(job.getBuildByNumber(anyInt())).thenAnswer(invocation -> run(invocation.getArgument(0)));
+        when(job.getBuilds()).thenAnswer(invocation -> RunList.fromRuns(builds()));
+        history = SyntheticHistory.createBuilds(job, SyntheticHistory.records(job, builds), logSize);
+        if (index.equals("warm")) BuildIndex.write(job, history);
+        when(job.getPermalinks()).thenReturn(permalinks());
+        build = mock(FreeStyleBuild.class, withSettings().stubOnly());
+        when(build.getParent()).thenReturn(job);
+
+        filesBefore = files(rootDir);
+        System.gc();
+        heapBefore = heapUsed(false);
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        readBefore = bytesRead();
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        long heapPeak = heapUsed(true);
+        long read = bytesRead();
+        Map<String, long[]> filesAfter = files(rootDir);
+        int touched = 0;
+        int deleted = 0;
+        long bytesDeleted = 0;
+        for (Map.Entry<String, long[]> e : filesBefore.entrySet()) {
+            long[] before = e.getValue();
+            long[] after = filesAfter.remove(e.getKey());
+            if (after == null && e.getKey().endsWith(File.separator + "build.xml")) deleted++;
+            if (after == null || after[0] != before[0] || after[1] != before[1]) touched++;
+            bytesDeleted += before[0] - (after == null ? 0 : after[0]);
+        }
+        // files created
+        for (long[] after : filesAfter.values()) {
+            touched++;
+            bytesDeleted -= after[0];
+        }
+
+        File report = new File(REPORT);
+        StringBuilder line = new StringBuilder();
+        if (!report.exists()) {
+            line.append("rule,index,builds,logSize,wallMillis,heapBaseline,heapPeak,filesTouched,bytesRead,bytesDeleted,")
+                    .append("buildsDeleted\n");
+        }
+        line.append(rule).append(',').append(index).append(',').append(builds).append(',').append(logSize).append(',');
+        line.append(TimeUnit.NANOSECONDS.toMillis(wallNanos)).append(',');
+        line.append(heapBefore).append(',').append(heapPeak).append(',');
+        line.append(touched).append(',');
+        line.append(readBefore == -1 ? -1 : read - readBefore).append(',');
+        line.append(bytesDeleted).append(',').append(deleted).append('\n');
+        Files.createDirectories(report.getAbsoluteFile().getParentFile().toPath());
+        Files.write(
+                report.toPath(),
+                line.toString().getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+
+        history = null;
+        Util.deleteRecursive(rootDir);
+        // the mocked builds refer to themselves, so they would never be collected otherwise
+        Mockito.framework().clearInlineMocks();
+    }
+
+    @Benchmark
+    public boolean perform() {
+        long start = System.nanoTime();
+        boolean performed = publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+        wallNanos = System.nanoTime() - start;
+        return performed;
+    }
+
+    /**
+     * @return the builds of the job, newest first, each loaded when it is reached
+     */
+    private List<FreeStyleBuild> builds() {
+        List<Integer> numbers = new ArrayList<Integer>();
+        for (int number = history.size(); number > 0; number--) {
+            if (new File(job.getBuildDir(), number + "/build.xml").isFile()) numbers.add(number);
+        }
+        return new AbstractList<FreeStyleBuild>() {
+            @Override
+            public FreeStyleBuild get(int index) {
+                try {
+                    return run(numbers.get(index));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            public int size() {
+                return numbers.size();
+            }
+        };
+    }
+
+    /**
+     * Mocks a build as Jenkins would load it from its directory.
+     *
+     * @return the build, or {@code null} if it was deleted
+     */
+    private FreeStyleBuild run(int number) throws IOException {
+        File dir = new File(job.getBuildDir(), Integer.toString(number));
+        File xml = new File(dir, "build.xml");
+        if (number < 1 || number > history.size() || !xml.isFile()) return null;
+        BuildRecord record = history.get(history.size() - number);
+        FreeStyleBuild run = mock(FreeStyleBuild.class, withSettings().stubOnly());
+        // as unmarshalled by Run, which keeps what it read
+        doReturn(Collections.singletonList(new BuildXml(xml))).when(run).getAllActions();
+        when(run.getParent()).thenReturn(job);
+        when(run.getNumber()).thenReturn(number);
+        when(run.getTimeInMillis()).thenReturn(record.getTimeInMillis());
+        when(run.getResult()).thenReturn(record.getResult());
+        when(run.getRootDir()).thenReturn(dir);
+        when(run.getArtifactsDir()).thenReturn(new File(dir, "archive"));
+        when(run.getCharset()).thenReturn(StandardCharsets.UTF_8);
+        // same as Run.getLogFile(), the log may be gzipped meanwhile
+        when(run.getLogFile()).thenAnswer(invocation -> {
+            File log = new File(dir, "log");
+            File gz = new File(dir, "log.gz");
+            return !log.isFile() && gz.isFile() ? gz : log;
+        });
+        // as Run.delete() and the RunListener of the index
+        doAnswer(invocation -> {
+                    Util.deleteRecursive(dir);
+                    BuildIndex.remove(run);
+                    return null;
+                })
+                .when(run)
+                .delete();
+        doAnswer(invocation -> {
+                    Util.deleteRecursive(new File(dir, "archive"));
+                    return null;
+                })
+                .when(run)
+                .deleteArtifacts();
+        return run;
+    }
+
+    /**
+     * Content of a {@code build.xml}, standing for what Jenkins reads from it.
+     */
+    private static final class BuildXml extends InvisibleAction {
+        private final Document document;
+
+        BuildXml(File file) throws IOException {
+            try {
+                document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+            } catch (ParserConfigurationException | SAXException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * @return permalinks to the last build, and to the last build of each result
+     */
+    private PermalinkList permalinks() {
+        PermalinkList permalinks = new PermalinkList();
+        permalinks.add(permalink("lastBuild", history.get(0).getNumber()));
+        addPermalink(permalinks, "lastSuccessfulBuild", Result.SUCCESS);
+        addPermalink(permalinks, "lastUnstableBuild", Result.UNSTABLE);
+        addPermalink(permalinks, "lastFailedBuild", Result.FAILURE);
+        return permalinks;
+    }
+
+    private void addPermalink(PermalinkList permalinks, String id, Result result) {
+        for (BuildRecord record : history) {
+            if (record.getResult() == result) {
+                permalinks.add(permalink(id, record.getNumber()));
+                return;
+            }
+        }
+    }
+
+    private static Permalink permalink(String id, int number) {
+        return new Permalink() {
+            @Override
+            public String getDisplayName() {
+                return id;
+            }
+
+            @Override
+            public String getId() {
+                return id;
+            }
+
+            @Override
+            public Run<?, ?> resolve(Job<?, ?> job) {
+                return job.getBuildByNumber(number);
+            }
+        };
+    }
+
+    /**
+     * @return size and modification time of each file under a directory, by path
+     */
+    private static Map<String, long[]> files(File dir) throws IOException {
+        Map<String, long[]> files = new HashMap<String, long[]>();
+        if (!dir.isDirectory()) return files;
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.filter(Files::isRegularFile).forEach(path -> {
+                File file = path.toFile();
+                files.put(file.getPath(), new long[] {file.length(), file.lastModified()});
+            });
+        }
+        return files;
+    }
+
+    /**
+     * @param peak whether to sum the peak usage of the heap pools since they were reset, rather than the usage
+     */
+    private static long heapUsed(boolean peak) {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) continue;
+            used += (peak ? pool.getPeakUsage() : pool.getUsage()).getUsed();
+        }
+        return used;
+    }
+
+    /**
+     * @return bytes read by the JVM so far, from {@code /proc/self/io}, or -1 where it is not available
+     */
+    private static long bytesRead() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/io"))) {
+                if (line.startsWith("rchar:")) return Long.parseLong(line.substring(6).trim());
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not Linux
+        }
+        return -1;
+    }
+}
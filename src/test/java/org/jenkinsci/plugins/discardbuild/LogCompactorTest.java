@@ -0,0 +1,128 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.Util;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import junit.framework.TestCase;
+
+/**
+ * Test for {@link LogCompactor}.
+ */
+public class LogCompactorTest extends TestCase {
+
+    private File dir;
+    private File log;
+    private File gz;
+
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("build").toFile();
+        log = new File(dir, "log");
+        gz = new File(dir, "log.gz");
+    }
+
+    public void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    public void testCompactGzips() throws Exception {
+        String content = repeat("[INFO] Building module\n", 1000);
+        Files.write(log.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        LogCompactor compactor = new LogCompactor(-1, -1);
+
+        assertTrue(compactor.compact(log) > 0);
+        assertFalse(log.exists());
+        assertEquals(content, read(gz));
+        assertEquals(0, compactor.compact(gz));
+    }
+
+    public void testCompactKeepsHeadAndTail() throws Exception {
+        Files.write(log.toPath(), ("HEAD" + repeat("x", 1000) + "TAIL").getBytes(StandardCharsets.UTF_8));
+        LogCompactor compactor = new LogCompactor(4, 4);
+
+        assertTrue(compactor.compact(log) > 0);
+        assertEquals("HEAD\n[... 1000 bytes removed ...]\nTAIL", read(log));
+        assertEquals(0, compactor.compact(log));
+    }
+
+    public void testCompactKeepsTailOfGzippedLog() throws Exception {
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz.toPath()))) {
+            out.write((repeat("x\n", 500) + "Finished: FAILURE\n").getBytes(StandardCharsets.UTF_8));
+        }
+        LogCompactor compactor = new LogCompactor(-1, 18);
+
+        compactor.compact(gz);
+        assertFalse(gz.exists());
+        assertEquals("\n[... 1000 bytes removed ...]\nFinished: FAILURE\n", read(log));
+    }
+
+    public void testCompactCutsAtLineBoundaries() throws Exception {
+        Files.write(log.toPath(), repeat("line\n", 300).getBytes(StandardCharsets.UTF_8));
+        LogCompactor compactor = new LogCompactor(12, 12);
+
+        assertTrue(compactor.compact(log) > 0);
+        assertEquals("line\nline\n\n[... 1480 bytes removed ...]\nline\nline\n", read(log));
+        assertEquals(0, compactor.compact(log));
+    }
+
+    public void testCompactDoesNotSplitCharacters() throws Exception {
+        // three bytes per character
+        Files.write(log.toPath(), repeat("\u3042", 400).getBytes(StandardCharsets.UTF_8));
+        LogCompactor compactor = new LogCompactor(8, 8);
+
+        compactor.compact(log);
+        assertEquals(repeat("\u3042", 2) + "\n[... 1188 bytes removed ...]\n" + repeat("\u3042", 2), read(log));
+    }
+
+    public void testCompactCountsRemovedBytesOfGzippedLog() throws Exception {
+        // the trailer of the last member only records the size of that member
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz.toPath()))) {
+            out.write(repeat("x\n", 5000).getBytes(StandardCharsets.UTF_8));
+        }
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz.toPath(), StandardOpenOption.APPEND))) {
+            out.write("Finished: FAILURE\n".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(18, BuildRecord.logSize(gz));
+        LogCompactor compactor = new LogCompactor(-1, 18);
+
+        assertTrue(compactor.compact(gz) > 0);
+        assertEquals("\n[... 10000 bytes removed ...]\nFinished: FAILURE\n", read(log));
+    }
+
+    public void testCompactKeepsTailLongerThanBuffer() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            content.append("line ").append(i).append('\n');
+        }
+        Files.write(log.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+        LogCompactor compactor = new LogCompactor(0, 200000);
+
+        compactor.compact(log);
+        String compacted = read(log);
+        String tail = compacted.substring(compacted.indexOf(" bytes removed ...]\n") + 20);
+        assertTrue(tail.length() > 190000 && tail.length() <= 200000);
+        assertTrue(tail.startsWith("line "));
+        assertTrue(content.toString().endsWith(tail));
+        assertEquals("\n[... " + (content.length() - tail.length()) + " bytes removed ...]\n" + tail, compacted);
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            b.append(s);
+        }
+        return b.toString();
+    }
+
+    private static String read(File file) throws Exception {
+        try (InputStream raw = Files.newInputStream(file.toPath());
+                InputStream in = file.getName().endsWith(".gz") ? new GZIPInputStream(raw) : raw) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+
+/**
+ * Test for {@link LogPatterns}.
+ */
+public class LogPatternsTest extends TestCase {
+
+    public void testRequiredLiteral() {
+        assertEquals("java.lang.OutOfMemoryError: ", literal("java\\.lang\\.OutOfMemoryError: .*"));
+        assertEquals("BUILD FAILED", literal("^BUILD FAILED$"));
+        assertEquals("Connection ", literal("Connection (refused|reset)"));
+        assertEquals(" timed out", literal("[0-9]+ timed out"));
+        assertEquals("error", literal("errors?"));
+        assertEquals(" at line ", literal("Fail\\w* at line \\d+"));
+        assertEquals("ab", literal("ab+c"));
+        assertNull(literal("foo|bar"));
+        assertNull(literal("(?i)error"));
+        assertNull(literal(".*"));
+        assertNull(LogPatterns.requiredLiteral(Pattern.compile("error", Pattern.CASE_INSENSITIVE)));
+    }
+
+    public void testRequiredLiteralRejectsEscapesWithArguments() {
+        for (String regex : new String[] {
+            "\\u00e9t\\u00e9",
+            "\\x41BCD",
+            "\\x{41}BCD",
+            "\\0101BCD",
+            "\\cMBCD",
+            "(?<n>a)\\k<n>BCD",
+            "\\p{Lu}BCD",
+            "\\P{Lu}BCD",
+            "(a)\\1BCD",
+            "\\N{LATIN SMALL LETTER E WITH ACUTE}BCD"
+        }) {
+            assertNull(regex, literal(regex));
+        }
+    }
+
+    public void testPrefilterKeepsLinesMatchingEscapes() throws Exception {
+        File log = File.createTempFile("log", null);
+        try {
+            Files.write(log.toPath(), "build\nd\u00e9j\u00e0 vu\n".getBytes(StandardCharsets.UTF_8));
+            LogPatterns patterns = LogPatterns.parse("d\\u00e9j\\u00e0 vu", "");
+            assertEquals(0, new LogScanner(patterns, -1, -1).match(log, StandardCharsets.UTF_8));
+        } finally {
+            Files.delete(log.toPath());
+        }
+    }
+
+    public void testParse() {
+        LogPatterns patterns = LogPatterns.parse("FAILED", "OOM=OutOfMemoryError\n\n# comment\r\nsegfault\n");
+
+        assertEquals(3, patterns.size());
+        assertNull(patterns.getLabel(0));
+        assertEquals("OOM", patterns.getLabel(1));
+        assertEquals("OutOfMemoryError", patterns.getPattern(1).pattern());
+        assertEquals("segfault", patterns.getLabel(2));
+        assertTrue(LogPatterns.parse("", "").isEmpty());
+    }
+
+    public void testMatchReportsFirstMatchingPattern() throws Exception {
+        File log = File.createTempFile("log", null);
+        try {
+            Files.write(
+                    log.toPath(),
+                    "Started\nnothing to see\njava.lang.OutOfMemoryError: heap\nConnection refused\n"
+                            .getBytes(StandardCharsets.UTF_8));
+            LogPatterns patterns = LogPatterns.parse(
+                    "", "net=Connection (refused|reset)\noom=OutOfMemoryError: \\w+$\nany=^nothing.*\n");
+
+            LogScanner scanner = new LogScanner(patterns, -1, -1);
+            // the first matching line wins, whatever the order of the patterns
+            assertEquals(2, scanner.match(log, StandardCharsets.UTF_8));
+            patterns = LogPatterns.parse("", "net=Connection (refused|reset)\noom=OutOfMemoryError: \\w+$\n");
+            assertEquals(1, new LogScanner(patterns, -1, -1).match(log, StandardCharsets.UTF_8));
+            patterns = LogPatterns.parse("", "oom=OutOfMemoryError: \\d+$\nsegv=SIGSEGV\n");
+            assertEquals(-1, new LogScanner(patterns, -1, -1).match(log, StandardCharsets.UTF_8));
+        } finally {
+            Files.delete(log.toPath());
+        }
+    }
+
+    private static String literal(String regex) {
+        return LogPatterns.requiredLiteral(Pattern.compile(regex));
+    }
+}
@@ -0,0 +1,135 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import junit.framework.TestCase;
+
+/**
+ * Test for {@link LogScanner}.
+ */
+public class LogScannerTest extends TestCase {
+
+    private File log;
+
+    public void setUp() throws Exception {
+        log = File.createTempFile("log", null);
+    }
+
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(log.toPath());
+    }
+
+    public void testFind() throws Exception {
+        write("Started by user admin\nBUILD FAILED\nFinished: FAILURE\n", StandardCharsets.UTF_8);
+
+        assertTrue(find("BUILD FAILED"));
+        assertTrue(find("^Finished: FAILURE$"));
+        assertFalse(find("BUILD SUCCESSFUL"));
+        assertFalse(find("FAILED\\nFinished")); // lines are matched one by one
+    }
+
+    public void testFindLastLineWithoutNewline() throws Exception {
+        write("first\nlast", StandardCharsets.UTF_8);
+
+        assertTrue(find("^last$"));
+    }
+
+    public void testFindCrLf() throws Exception {
+        write("first\r\nsecond\r\n\r\nthird\rfourth", StandardCharsets.UTF_8);
+
+        assertTrue(find("^second$"));
+        assertTrue(find("^third$"));
+        assertTrue(find("^fourth$"));
+        assertTrue(find("^$"));
+        assertFalse(find("\\r"));
+    }
+
+    public void testFindUsesCharset() throws Exception {
+        write("r\u00e9sum\u00e9\n", StandardCharsets.ISO_8859_1);
+
+        assertTrue(find("r\u00e9sum\u00e9", StandardCharsets.ISO_8859_1));
+        assertFalse(find("r\u00e9sum\u00e9", StandardCharsets.UTF_8));
+    }
+
+    public void testFindAcrossBuffers() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 3 * 64 * 1024 - 10) {
+            sb.append("x\n");
+        }
+        sb.append("a line which is split between two reads\n");
+        write(sb.toString(), StandardCharsets.UTF_8);
+
+        assertTrue(find("^a line which is split between two reads$"));
+        assertFalse(find("^x.+$"));
+    }
+
+    public void testFindLongLine() throws Exception {
+        write("0123456789abcdefghij\nshort\n", StandardCharsets.UTF_8);
+
+        LogScanner scanner = new LogScanner(Pattern.compile("cdef"), 8);
+        assertTrue(scanner.find(log, StandardCharsets.UTF_8));
+        scanner = new LogScanner(Pattern.compile("^short$"), 8);
+        assertTrue(scanner.find(log, StandardCharsets.UTF_8));
+        // matches spanning two chunks of an over-long line are not found
+        scanner = new LogScanner(Pattern.compile("789a"), 8);
+        assertFalse(scanner.find(log, StandardCharsets.UTF_8));
+    }
+
+    public void testFindCompressed() throws Exception {
+        File gz = new File(log.getPath() + ".gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz.toPath()))) {
+            out.write("Started by user admin\nBUILD FAILED\n".getBytes(StandardCharsets.UTF_8));
+        }
+        try {
+            assertTrue(new LogScanner(Pattern.compile("^BUILD FAILED$")).find(gz, StandardCharsets.UTF_8));
+            assertFalse(new LogScanner(Pattern.compile("gzip")).find(gz, StandardCharsets.UTF_8));
+            assertEquals(35, BuildRecord.logSize(gz));
+        } finally {
+            Files.delete(gz.toPath());
+        }
+    }
+
+    public void testFindHeadAndTail() throws Exception {
+        write("first\nmiddle\nlast\n", StandardCharsets.UTF_8);
+
+        assertTrue(new LogScanner(Pattern.compile("^first$"), 6, -1).find(log, StandardCharsets.UTF_8));
+        assertFalse(new LogScanner(Pattern.compile("middle"), 6, -1).find(log, StandardCharsets.UTF_8));
+        assertTrue(new LogScanner(Pattern.compile("^last$"), -1, 5).find(log, StandardCharsets.UTF_8));
+        assertFalse(new LogScanner(Pattern.compile("middle"), -1, 5).find(log, StandardCharsets.UTF_8));
+        assertTrue(new LogScanner(Pattern.compile("last"), 6, 5).find(log, StandardCharsets.UTF_8));
+        assertFalse(new LogScanner(Pattern.compile("middle"), 6, 5).find(log, StandardCharsets.UTF_8));
+        // overlapping limits search the whole log
+        assertTrue(new LogScanner(Pattern.compile("^middle$"), 10, 10).find(log, StandardCharsets.UTF_8));
+    }
+
+    public void testFindTailCompressed() throws Exception {
+        File gz = new File(log.getPath() + ".gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz.toPath()))) {
+            out.write("first\nmiddle\nlast\n".getBytes(StandardCharsets.UTF_8));
+        }
+        try {
+            assertTrue(new LogScanner(Pattern.compile("^first$"), 6, 5).find(gz, StandardCharsets.UTF_8));
+            assertTrue(new LogScanner(Pattern.compile("^last$"), 6, 5).find(gz, StandardCharsets.UTF_8));
+            assertFalse(new LogScanner(Pattern.compile("middle"), 6, 5).find(gz, StandardCharsets.UTF_8));
+        } finally {
+            Files.delete(gz.toPath());
+        }
+    }
+
+    private boolean find(String regexp) throws Exception {
+        return find(regexp, StandardCharsets.UTF_8);
+    }
+
+    private boolean find(String regexp, Charset charset) throws Exception {
+        return new LogScanner(Pattern.compile(regexp)).find(log, charset);
+    }
+
+    private void write(String content, Charset charset) throws Exception {
+        Files.write(log.toPath(), content.getBytes(charset));
+    }
+}
@@ -0,0 +1,84 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import static org.mockito.Mockito.*;
+
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The whole {@link DiscardBuildPublisher#perform} path, from reading and reconciling the build index to
+ * logging the plan. The publisher runs dry, so that every invocation sees the same history; deleting builds
+ * is left out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PerformBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int builds;
+
+    @Param({"days", "status", "all"})
+    public String rule;
+
+    private File rootDir;
+    private FreeStyleBuild build;
+    private Launcher launcher;
+    private BuildListener listener;
+    private DiscardBuildPublisher publisher;
+
+    @Setup
+    public void setUp() throws IOException {
+        rootDir = Files.createTempDirectory("benchmark").toFile();
+        FreeStyleProject job = mock(FreeStyleProject.class, withSettings().stubOnly());
+        when(job.getRootDir()).thenReturn(rootDir);
+        when(job.getBuildDir()).thenReturn(new File(rootDir, "builds"));
+        build = mock(FreeStyleBuild.class, withSettings().stubOnly());
+        when(build.getParent()).thenReturn(job);
+        launcher = mock(Launcher.class, withSettings().stubOnly());
+        listener = mock(BuildListener.class, withSettings().stubOnly());
+        when(listener.getLogger()).thenReturn(new PrintStream(OutputStream.nullOutputStream()));
+
+        List<BuildRecord> history = SyntheticHistory.records(job, builds);
+        SyntheticHistory.createBuildDirs(job, history);
+        BuildIndex.write(job, history);
+        publisher = RetentionEvaluatorBenchmark.publisher(rule);
+        publisher.setDryRun(true);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Util.deleteRecursive(rootDir);
+    }
+
+    @Benchmark
+    public boolean perform() {
+        return publisher.perform((AbstractBuild<?, ?>) build, launcher, listener);
+    }
+}
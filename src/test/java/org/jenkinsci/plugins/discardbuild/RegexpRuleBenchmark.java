@@ -0,0 +1,102 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import static org.mockito.Mockito.*;
+
+import hudson.Util;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Evaluation of the regular expression rule over logs on disk, both scanning every log and answering from
+ * the verdicts cached by a previous evaluation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RegexpRuleBenchmark {
+
+    @Param({"1000", "10000"})
+    public int builds;
+
+    /**
+     * Lines of each log.
+     */
+    @Param({"100", "1000"})
+    public int lines;
+
+    /**
+     * Bytes searched at the end of each log, or -1 for the whole log.
+     */
+    @Param({"-1", "4096"})
+    public long tail;
+
+    /**
+     * Labelled patterns searched for besides the one which matches some logs.
+     */
+    @Param({"0", "50"})
+    public int signatures;
+
+    private File rootDir;
+    private FreeStyleProject job;
+    private DiscardBuildPublisher publisher;
+    private List<BuildRecord> history;
+
+    @Setup
+    public void setUp() throws IOException {
+        rootDir = Files.createTempDirectory("benchmark").toFile();
+        job = mock(FreeStyleProject.class, withSettings().stubOnly());
+        FreeStyleBuild run = mock(FreeStyleBuild.class, withSettings().stubOnly());
+        when(run.getCharset()).thenReturn(StandardCharsets.UTF_8);
+        when(job.getRootDir()).thenReturn(rootDir);
+        when(job.getBuildDir()).thenReturn(new File(rootDir, "builds"));
+        when(job.getBuildByNumber(anyInt())).thenReturn(run);
+        publisher = new DiscardBuildPublisher(
+                "", "", "", "", false, false, false, false, false, "", "", "OutOfMemoryError", false, false);
+        publisher.setRegexpTailSize(Long.toString(tail));
+        StringBuilder patterns = new StringBuilder();
+        for (int i = 0; i < signatures; i++) {
+            patterns.append("signature").append(i).append("=Exception").append(i).append(": .* at line \\d+\n");
+        }
+        publisher.setLogPatterns(patterns.toString());
+        history = SyntheticHistory.records(job, builds);
+        SyntheticHistory.writeLogs(history, lines);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Util.deleteRecursive(rootDir);
+    }
+
+    @Benchmark
+    public DiscardPlan scan() throws IOException {
+        Files.deleteIfExists(new File(rootDir, RegexpVerdictCache.FILE_NAME).toPath());
+        return new RetentionEvaluator(publisher, TaskListener.NULL, true).evaluate(job, history);
+    }
+
+    @Benchmark
+    public DiscardPlan cached() {
+        return new RetentionEvaluator(publisher, TaskListener.NULL, true).evaluate(job, history);
+    }
+}
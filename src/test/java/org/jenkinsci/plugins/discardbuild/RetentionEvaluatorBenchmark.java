@@ -0,0 +1,110 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import static org.mockito.Mockito.*;
+
+import hudson.Util;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Evaluation of each rule over an in-memory history, leaving out reading the build index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RetentionEvaluatorBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int builds;
+
+    @Param({"days", "num", "intervalDays", "intervalNum", "status", "logFileSize", "diskUsage", "holdMaxBuilds", "all"})
+    public String rule;
+
+    private File rootDir;
+    private FreeStyleProject job;
+    private DiscardBuildPublisher publisher;
+    private List<BuildRecord> history;
+
+    @Setup
+    public void setUp() throws IOException {
+        rootDir = Files.createTempDirectory("benchmark").toFile();
+        job = mock(FreeStyleProject.class, withSettings().stubOnly());
+        when(job.getRootDir()).thenReturn(rootDir);
+        when(job.getBuildDir()).thenReturn(new File(rootDir, "builds"));
+        publisher = publisher(rule);
+        history = SyntheticHistory.records(job, builds);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Util.deleteRecursive(rootDir);
+    }
+
+    @Benchmark
+    public DiscardPlan evaluate() {
+        return new RetentionEvaluator(publisher, TaskListener.NULL, true).evaluate(job, history);
+    }
+
+    static DiscardBuildPublisher publisher(String rule) {
+        switch (rule) {
+            case "days":
+                return new DiscardBuildPublisher(
+                        "30", "", "", "", false, false, false, false, false, "", "", "", false, false);
+            case "num":
+                return new DiscardBuildPublisher(
+                        "", "", "100", "", false, false, false, false, false, "", "", "", false, false);
+            case "intervalDays":
+                return new DiscardBuildPublisher(
+                        "", "7", "", "", false, false, false, false, false, "", "", "", false, false);
+            case "intervalNum":
+                return new DiscardBuildPublisher(
+                        "", "", "", "10", false, false, false, false, false, "", "", "", false, false);
+            case "status":
+                return new DiscardBuildPublisher(
+                        "", "", "", "", false, false, true, true, true, "", "", "", false, false);
+            case "logFileSize":
+                return new DiscardBuildPublisher(
+                        "", "", "", "", false, false, false, false, false, "2048", "524288", "", false, false);
+            case "regexp":
+                return new DiscardBuildPublisher(
+                        "", "", "", "", false, false, false, false, false, "", "", "OutOfMemoryError", false, false);
+            case "diskUsage":
+                DiscardBuildPublisher publisher = new DiscardBuildPublisher(
+                        "", "", "", "", false, false, false, false, false, "", "", "", false, false);
+                publisher.setMaxDiskUsage("10240");
+                publisher.setDiscardLargestFirst(true);
+                return publisher;
+            case "keepLastBuilds":
+                return new DiscardBuildPublisher(
+                        "", "", "100", "", false, false, false, false, false, "", "", "", true, false);
+            case "holdMaxBuilds":
+                return new DiscardBuildPublisher(
+                        "30", "", "100", "", false, false, false, false, false, "", "", "", false, true);
+            case "all":
+                return new DiscardBuildPublisher(
+                        "90", "7", "1000", "10", false, false, true, true, true, "2048", "524288", "", false, false);
+            default:
+                throw new IllegalArgumentException(rule);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.jenkinsci.plugins.discardbuild;
+
+import hudson.model.Job;
+import hudson.model.Result;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates reproducible build histories for the benchmarks: a year of builds, newest first, with jittered
+ * intervals, mostly successful results, log sizes spread between 1 KiB and 1 MiB and up to 64 MiB of artifacts.
+ */
+final class SyntheticHistory {
+    private static final long SPAN = TimeUnit.DAYS.toMillis(365);
+    /**
+     * A {@code build.xml} of about 8 KiB, as for a build with a few actions and parameters.
+     */
+    private static final byte[] BUILD_XML = buildXml();
+
+    private SyntheticHistory() {}
+
+    private static byte[] buildXml() {
+        StringBuilder xml = new StringBuilder("<?xml version='1.1' encoding='UTF-8'?>\n<build>\n  <actions>\n");
+        xml.append("    <hudson.model.ParametersAction>\n      <parameters>\n");
+        for (int i = 0; i < 64; i++) {
+            xml.append("        <hudson.model.StringParameterValue>\n")
+                    .append("          <name>PARAMETER_")
+                    .append(i)
+                    .append("</name>\n          <value>value-")
+                    .append(i)
+                    .append("</value>\n        </hudson.model.StringParameterValue>\n");
+        }
+        xml.append("      </parameters>\n    </hudson.model.ParametersAction>\n  </actions>\n");
+        xml.append("  <result>SUCCESS</result>\n  <duration>60000</duration>\n</build>\n");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param job    job the records belong to
+     * @param builds number of builds
+     * @return records of the builds, newest first
+     */
+    static List<BuildRecord> records(Job<?, ?> job, int builds) {
+        Random random = new Random(builds);
+        List<BuildRecord> records = new ArrayList<BuildRecord>(builds);
+        long interval = SPAN / builds;
+        long time = System.currentTimeMillis();
+        for (int number = builds; number > 0; number--) {
+            time -= interval / 2 + (long) (random.nextDouble() * interval);
+            long logSize = 1L << (10 + random.nextInt(11));
+            long diskUsage = logSize + random.nextInt(64 << 20);
+            records.add(new BuildRecord(job, number, time, result(random), false, false, logSize, diskUsage));
+        }
+        return records;
+    }
+
+    private static Result result(Random random) {
+        int n = random.nextInt(100);
+        if (n < 80) return Result.SUCCESS;
+        if (n < 88) return Result.FAILURE;
+        if (n < 94) return Result.UNSTABLE;
+        if (n < 98) return Result.ABORTED;
+        return Result.NOT_BUILT;
+    }
+
+    /**
+     * Creates the build directories of the records, with a log of about {@code lines} lines for each build.
+     * One build in fifty runs out of memory.
+     */
+    static void writeLogs(List<BuildRecord> records, int lines) throws IOException {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            log.append("[INFO] Compiling module ").append(i).append(" of the project to target/classes\n");
+        }
+        String passed = log + "[INFO] BUILD SUCCESS\n";
+        String failed = log + "java.lang.OutOfMemoryError: Java heap space\n[INFO] BUILD FAILURE\n";
+        for (BuildRecord record : records) {
+            File file = record.getLogFile();
+            Files.createDirectories(file.getParentFile().toPath());
+            String text = record.getNumber() % 50 == 0 ? failed : passed;
+            Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Creates the build directories of the records, each with a {@code build.xml} and a log of {@code logSize}
+     * bytes. One build in fifty runs out of memory.
+     *
+     * @return the records, with the log size and disk usage of the directories created
+     */
+    static List<BuildRecord> createBuilds(Job<?, ?> job, List<BuildRecord> records, int logSize)
+            throws IOException {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; log.length() < logSize; i++) {
+            log.append("[INFO] Compiling module ").append(i).append(" of the project to target/classes\n");
+        }
+        byte[] passed = withEnd(log, logSize, "\n[INFO] BUILD SUCCESS\n");
+        byte[] failed = withEnd(log, logSize, "\njava.lang.OutOfMemoryError: Java heap space\n");
+        List<BuildRecord> created = new ArrayList<BuildRecord>(records.size());
+        for (BuildRecord record : records) {
+            File dir = new File(job.getBuildDir(), Integer.toString(record.getNumber()));
+            Files.createDirectories(dir.toPath());
+            Files.write(new File(dir, "build.xml").toPath(), BUILD_XML);
+            byte[] text = record.getNumber() % 50 == 0 ? failed : passed;
+            Files.write(new File(dir, "log").toPath(), text);
+            created.add(new BuildRecord(
+                    job,
+                    record.getNumber(),
+                    record.getTimeInMillis(),
+                    record.getResult(),
+                    false,
+                    false,
+                    text.length,
+                    BuildRecord.diskUsage(dir)));
+        }
+        return created;
+    }
+
+    private static byte[] withEnd(CharSequence log, int size, String end) {
+        String text = log.subSequence(0, Math.max(0, size - end.length())) + end;
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates the build directories of the records, without logs.
+     */
+    static void createBuildDirs(Job<?, ?> job, List<BuildRecord> records) throws IOException {
+        for (BuildRecord record : records) {
+            Files.createDirectories(new File(job.getBuildDir(), Integer.toString(record.getNumber())).toPath());
+        }
+    }
+}